@@ -0,0 +1,264 @@
+package com.h3music.videoeditor;
+
+import com.h3music.videoeditor.glitch.GlitchEffect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class renders many videos in one JVM, from a manifest of video records.
+ * Every video shares the render scheduler, the grain cache and the render cache, so the JIT, ImageIO
+ * and the decoded grain frames are only warmed up once. A few videos are rendered at once, their frames
+ * admitted against the same render memory budget.
+ * Videos with the same background are rendered one after another, so the later ones reuse the cached assets.
+ * <p>
+ * The manifest is a CSV file with a line for each video: source,audio,output,impacts[,seed].
+ * Impacts are frame values separated by ';' or spaces. Blank lines, and lines starting with '#', are skipped.
+ * The first other line may be a header of the column names (source,audio,output,impacts[,seed]).
+ */
+public final class BatchRender {
+    /**
+     * The system property to configure the number of videos rendered at once. Defaults to 2.
+     */
+    public static final String JOBS_PROPERTY = "videoeditor.batchJobs";
+
+    private BatchRender() {}
+
+    /**
+     * This record provides the result of a video in the batch.
+     * @param record The video that was rendered.
+     * @param elapsedNanos The time the render took.
+     * @param success Whether the render succeeded, and the video file was written.
+     */
+    public record Job(VideoRecord record, long elapsedNanos, boolean success) {}
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: BatchRender <manifest.csv>");
+            System.exit(1);
+        }
+
+        try {
+            List<VideoRecord> records = readManifest(new File(args[0]));
+
+            List<Job> jobs = render(records, VideoEditor.GRAIN_RESOURCE, Integer.getInteger(JOBS_PROPERTY, 2));
+
+            if (jobs.stream().anyMatch(job -> !job.success())) {
+                System.exit(1);
+            }
+
+        } catch (IOException e) {
+            System.out.println("An Error Occurred");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the video records of a manifest.
+     * @param manifest The CSV manifest file.
+     * @return The video records, in the order of the manifest
+     * @throws IOException If the file can't be read, or a line isn't a valid record
+     */
+    public static List<VideoRecord> readManifest(File manifest) throws IOException {
+        return parseManifest(Files.readAllLines(manifest.toPath()), manifest.toString());
+    }
+
+    /**
+     * Parses the video records of manifest lines.
+     * @param lines The lines of the manifest.
+     * @param manifest The name of the manifest, for error messages.
+     * @return The video records, in the order of the lines
+     * @throws IOException If a line isn't a valid record
+     */
+    static List<VideoRecord> parseManifest(List<String> lines, String manifest) throws IOException {
+        List<VideoRecord> records = new ArrayList<>();
+        boolean firstLine = true;
+
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).strip();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split(",", -1);
+
+            if (fields.length < 4 || fields.length > 5) {
+                throw new IOException(manifest + " line " + (i + 1) + ": expected source,audio,output,impacts[,seed]");
+            }
+
+            // Only the first line can be the header, a later line is always a record, whatever its source is named
+            if (firstLine) {
+                firstLine = false;
+
+                if (isHeader(fields)) {
+                    continue;
+                }
+            }
+
+            try {
+                ArrayList<Integer> impactFrames = new ArrayList<>();
+
+                for (String frame : field(fields[3]).split("[;\\s]+")) {
+                    if (!frame.isEmpty()) {
+                        impactFrames.add(Integer.parseInt(frame));
+                    }
+                }
+
+                long seed = fields.length == 5 && !field(fields[4]).isEmpty()
+                        ? Long.parseLong(field(fields[4])) : GlitchEffect.defaultSeed();
+
+                records.add(new VideoRecord(impactFrames, new File(field(fields[0])), new File(field(fields[1])),
+                        new File(field(fields[2])), seed));
+
+            } catch (NumberFormatException e) {
+                throw new IOException(manifest + " line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Renders every video, a few at once, and prints a summary with the time each video took.
+     * @param records The videos to render.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param maxJobs The max number of videos rendered at once.
+     * @return The result of each video, in the order of the records
+     */
+    public static List<Job> render(List<VideoRecord> records, File grainResource, int maxJobs) {
+        Job[] jobs = new Job[records.size()];
+
+        // Videos with the same background share a lane, so only the first renders the assets
+        Map<String, List<Integer>> lanes = new LinkedHashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            lanes.computeIfAbsent(records.get(i).sourceFile().getAbsolutePath(), source -> new ArrayList<>()).add(i);
+        }
+
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, maxJobs), runnable -> {
+            Thread thread = new Thread(runnable, "batch-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+
+        try {
+            CompletableFuture<?>[] running = new CompletableFuture<?>[lanes.size()];
+            int laneI = 0;
+
+            // The executor only runs maxJobs lanes at once, the rest wait in its queue
+            for (List<Integer> lane : lanes.values()) {
+                running[laneI++] = CompletableFuture.runAsync(() -> {
+                    for (int i : lane) {
+                        jobs[i] = render(records.get(i), grainResource, i, records.size());
+                    }
+                }, executor);
+            }
+
+            CompletableFuture.allOf(running).join();
+
+        } finally {
+            executor.shutdown();
+        }
+
+        List<Job> results = List.of(jobs);
+        printSummary(results, System.nanoTime() - start, Math.min(Math.max(1, maxJobs), lanes.size()));
+        return results;
+    }
+
+    /**
+     * Renders a single video of the batch.
+     * @param record The video to render.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param i The index of the video in the batch.
+     * @param count The number of videos in the batch.
+     * @return The result of the video
+     */
+    private static Job render(VideoRecord record, File grainResource, int i, int count) {
+        long start = System.nanoTime();
+
+        System.out.println("Processing " + (i + 1) + " / " + count + ": " + record.outputFile()
+                + " (Glitch seed " + record.seed() + ")");
+
+        boolean success = render(record, grainResource);
+        return new Job(record, System.nanoTime() - start, success);
+    }
+
+    /**
+     * Renders a video record, the same as VideoEditor does. The output of a failed render is deleted.
+     * @param record The video to render.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @return True if the render succeeded
+     */
+    static boolean render(VideoRecord record, File grainResource) {
+        if (!record.sourceFile().exists() || !record.audio().exists() || record.outputFile().exists()) {
+            System.out.println("Error with inputted files: " + record.outputFile());
+            return false;
+        }
+
+        try {
+            Video.renderAsync(VideoEditor.getAudioDuration(record.audio()), record.impactFrames(), record.seed(),
+                    record.sourceFile(), grainResource, record.audio(), record.outputFile()).join();
+            return true;
+
+        } catch (CompletionException e) {
+            System.out.println("An Error Occurred");
+            e.getCause().printStackTrace();
+        } catch (Exception e) {
+            System.out.println("An Error Occurred");
+            e.printStackTrace();
+        }
+
+        // A stopped FFMPEG still finalizes the video it was writing, so a failed render can leave a truncated file
+        if (record.outputFile().exists() && !record.outputFile().delete()) {
+            System.out.println("Could not delete the partial video: " + record.outputFile());
+        }
+        return false;
+    }
+
+    private static void printSummary(List<Job> jobs, long elapsedNanos, int maxJobs) {
+        long jobNanos = jobs.stream().mapToLong(Job::elapsedNanos).sum();
+        long succeeded = jobs.stream().filter(Job::success).count();
+
+        System.out.println(String.format("Batch: %d / %d videos rendered in %.1f s, %.1f s of renders, %d at once",
+                succeeded, jobs.size(), elapsedNanos / 1e9, jobNanos / 1e9, maxJobs));
+
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            System.out.println(String.format("%4d  %-6s %8.1f s  %s", i + 1, job.success() ? "done" : "FAILED",
+                    job.elapsedNanos() / 1e9, job.record().outputFile()));
+        }
+    }
+
+    /**
+     * Checks if the fields of a manifest line are the column names, instead of a video record.
+     * @param fields The fields of the line.
+     * @return Whether the line is the header
+     */
+    private static boolean isHeader(String[] fields) {
+        return field(fields[0]).equalsIgnoreCase("source") && field(fields[1]).equalsIgnoreCase("audio")
+                && field(fields[2]).equalsIgnoreCase("output") && field(fields[3]).equalsIgnoreCase("impacts")
+                && (fields.length == 4 || field(fields[4]).equalsIgnoreCase("seed"));
+    }
+
+    /**
+     * Trims a manifest field, and the quotes around a path.
+     * @param field The field of the manifest line.
+     * @return The value of the field
+     */
+    private static String field(String field) {
+        return field.strip().replace("\"", "");
+    }
+}
@@ -0,0 +1,423 @@
+package com.h3music.videoeditor;
+
+import com.h3music.videoeditor.frame.FrameCodec;
+import com.h3music.videoeditor.frame.FramePool;
+import com.h3music.videoeditor.frame.FrameSpool;
+import com.h3music.videoeditor.frame.MemoryBudget;
+import com.h3music.videoeditor.frame.RawFrames;
+import com.h3music.videoeditor.frame.RenderScheduler;
+import com.h3music.videoeditor.glitch.GlitchEffect;
+import com.h3music.videoeditor.glitch.RgbOffset;
+import com.h3music.videoeditor.grain.GrainEffect;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * This class renders the effect frame assets as a per-frame dependency graph, instead of one stage after another.
+ * Every grain frame is queued at once, each glitch frame is made the moment its grain frame is written,
+ * in the same frame task, and the exporter can use each asset as soon as it is written.
+ * Assets below the grain count are grain frames, an asset of grain count + i is glitch frame i.
+ */
+public final class EffectGraph {
+    private final List<CompletableFuture<Void>> assets;
+    private final List<CompletableFuture<Void>> frames;
+    private final Tasks tasks;
+
+    private EffectGraph(List<CompletableFuture<Void>> assets, List<CompletableFuture<Void>> frames, Tasks tasks) {
+        this.assets = assets;
+        this.frames = frames;
+        this.tasks = tasks;
+    }
+
+    /**
+     * Starts rendering every asset frame on the scheduler, written to folders as image files.
+     * @param source The decoded background of the video. It is only read, never modified.
+     * @param grainFrames An array list of image files, to overlay blend over the source image.
+     * @param grainOutput The folder to write "film grain" frame assets to.
+     * @param glitchOutput The folder to write "glitch effect" frame assets to.
+     * @param grainCount The number of "film grain" frame assets
+     * @param glitchCount The number of "glitch effect" frame assets, applied to the first grain frames.
+     * @param opacity The opacity of the grain over the source.
+     * @param amplification How strong the glitch effect is (Usually a value between 1-5 suffices)
+     * @param seed The seed of the glitch offsets. The same seed always renders the same assets.
+     * @param scheduler The scheduler to render frames on.
+     * @param codec The format to write frame assets in, Ex. FrameCodec.forRender.
+     * @return The graph of the running frame tasks
+     */
+    public static EffectGraph start(BufferedImage source, List<File> grainFrames, File grainOutput,
+                                    File glitchOutput, int grainCount, int glitchCount, double opacity,
+                                    int amplification, long seed, RenderScheduler scheduler, FrameCodec codec) {
+
+        return start(source, grainFrames, (asset, image) -> codec.write(image,
+                        asset < grainCount ? new File(grainOutput, codec.fileName(asset))
+                                : new File(glitchOutput, codec.fileName(asset - grainCount))),
+                asset -> false, null, grainCount, glitchCount, opacity, amplification, seed, scheduler);
+    }
+
+    /**
+     * Starts rendering every asset frame on the scheduler, written to a spool as raw frames.
+     * @param source The decoded background of the video. It is only read, never modified.
+     * @param grainFrames An array list of image files, to overlay blend over the source image.
+     * @param spool The spool to write asset frames to, with a frame for each asset, the same size as the source.
+     * @param grainCount The number of "film grain" frame assets
+     * @param glitchCount The number of "glitch effect" frame assets, applied to the first grain frames.
+     * @param opacity The opacity of the grain over the source.
+     * @param amplification How strong the glitch effect is (Usually a value between 1-5 suffices)
+     * @param seed The seed of the glitch offsets. The same seed always renders the same assets.
+     * @param scheduler The scheduler to render frames on.
+     * @return The graph of the running frame tasks
+     */
+    public static EffectGraph start(BufferedImage source, List<File> grainFrames, FrameSpool spool,
+                                    int grainCount, int glitchCount, double opacity,
+                                    int amplification, long seed, RenderScheduler scheduler) {
+
+        checkFrameCount(spool, grainCount, glitchCount);
+
+        return start(source, grainFrames, spool::put, asset -> false, null, grainCount, glitchCount, opacity,
+                amplification, seed, scheduler);
+    }
+
+    /**
+     * Starts rendering the asset frames a render cache entry is missing, written to its spool as raw frames.
+     * Assets already rendered by an earlier render of the entry are complete at once. If a glitch frame is missing
+     * but its grain frame isn't, the grain frame is read back from the spool instead of being rendered again.
+     * @param source The decoded background of the video. It is only read, never modified.
+     * @param grainFrames An array list of image files, to overlay blend over the source image.
+     * @param entry The entry to write asset frames to, with a frame for each asset, the same size as the source.
+     * @param grainCount The number of "film grain" frame assets
+     * @param glitchCount The number of "glitch effect" frame assets, applied to the first grain frames.
+     * @param opacity The opacity of the grain over the source.
+     * @param amplification How strong the glitch effect is (Usually a value between 1-5 suffices)
+     * @param seed The seed of the glitch offsets. The same seed always renders the same assets.
+     * @param scheduler The scheduler to render frames on.
+     * @return The graph of the running frame tasks
+     */
+    public static EffectGraph start(BufferedImage source, List<File> grainFrames, RenderCache.Entry entry,
+                                    int grainCount, int glitchCount, double opacity,
+                                    int amplification, long seed, RenderScheduler scheduler) {
+
+        FrameSpool spool = entry.spool();
+        checkFrameCount(spool, grainCount, glitchCount);
+
+        return start(source, grainFrames, entry::put, entry::rendered,
+                (asset, image) -> RawFrames.get(spool.frame(asset), image),
+                grainCount, glitchCount, opacity, amplification, seed, scheduler);
+    }
+
+    private static void checkFrameCount(FrameSpool spool, int grainCount, int glitchCount) {
+        if (spool.frameCount() < grainCount + Math.min(glitchCount, grainCount)) {
+            throw new IllegalArgumentException("Spool has " + spool.frameCount() + " frames, expected "
+                    + (grainCount + Math.min(glitchCount, grainCount)));
+        }
+    }
+
+    private static EffectGraph start(BufferedImage source, List<File> grainFrames, AssetWriter writer,
+                                     IntPredicate rendered, AssetReader reader, int grainCount, int glitchCount,
+                                     double opacity, int amplification, long seed, RenderScheduler scheduler) {
+
+        long pixels = (long) source.getWidth() * source.getHeight();
+        MemoryBudget budget = scheduler.budget();
+        Tasks tasks = new Tasks();
+
+        // At most the scheduler's parallelism frames of the graph run at once, Ex. with Video.render's maxThreads
+        Executor executor = scheduler.boundedExecutor();
+
+        List<CompletableFuture<Void>> grainAssets = new ArrayList<>(grainCount);
+        List<CompletableFuture<Void>> glitchAssets = new ArrayList<>(glitchCount);
+        List<CompletableFuture<Void>> frames = new ArrayList<>(grainCount);
+
+        for (int i = 0; i < grainCount; i++) {
+            File grainFile = grainFrames.get(i % grainFrames.size());
+            int grainAsset = i;
+            int glitchAsset = grainCount + i;
+
+            boolean grainRendered = rendered.test(grainAsset);
+            // A glitch frame already rendered doesn't need its grain frame
+            boolean glitched = i < glitchCount && !rendered.test(glitchAsset);
+
+            if (grainRendered && !glitched) {
+                grainAssets.add(CompletableFuture.completedFuture(null));
+                if (i < glitchCount) {
+                    glitchAssets.add(CompletableFuture.completedFuture(null));
+                }
+                continue;
+            }
+
+            int[] offsets = glitched ? GlitchEffect.offsets(i, amplification, glitchCount, seed) : null;
+            CompletableFuture<Void> grain = grainRendered ? CompletableFuture.completedFuture(null)
+                    : new CompletableFuture<>();
+
+            // The glitch frame is made in the same task, while its grain frame is still in memory,
+            // so the grain frame is never held outside the memory budget
+            long footprint = GrainEffect.footprint(pixels) + (glitched ? RgbOffset.footprint(pixels) : 0);
+
+            CompletableFuture<Void> frame = CompletableFuture.supplyAsync(
+                    () -> admitted(tasks, budget, footprint, () -> {
+                        try (FramePool.Lease<BufferedImage> image = FramePool.shared().compatible(source)) {
+                            if (grainRendered) {
+                                reader.read(grainAsset, image.get());
+                            } else {
+                                GrainEffect.grainFrame(source, grainFile, opacity, image.get());
+                                writer.write(grainAsset, image.get());
+                                grain.complete(null);
+                            }
+
+                            if (glitched) {
+                                try (FramePool.Lease<BufferedImage> glitch = FramePool.shared().image(
+                                        source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB)) {
+
+                                    GlitchEffect.glitchFrame(image.get(), offsets, glitch.get());
+                                    writer.write(glitchAsset, glitch.get());
+                                }
+                            }
+                        }
+                        return null;
+                    }), executor);
+
+            frame.whenComplete((result, error) -> {
+                if (error != null) {
+                    grain.completeExceptionally(error);
+                }
+            });
+
+            frames.add(frame);
+            grainAssets.add(glitched ? grain : frame);
+            if (glitched) {
+                glitchAssets.add(frame);
+            } else if (i < glitchCount) {
+                glitchAssets.add(CompletableFuture.completedFuture(null));
+            }
+        }
+
+        List<CompletableFuture<Void>> assets = new ArrayList<>(grainAssets);
+        assets.addAll(glitchAssets);
+
+        return new EffectGraph(assets, frames, tasks);
+    }
+
+    /**
+     * The task of an asset frame.
+     * @param asset The asset's index.
+     * @return The task, complete once the asset is written
+     */
+    public CompletableFuture<Void> asset(int asset) {
+        return assets.get(asset);
+    }
+
+    /**
+     * Waits for an asset frame to be written.
+     * @param asset The asset's index.
+     * @throws IOException If the asset couldn't be rendered
+     */
+    public void await(int asset) throws IOException {
+        try {
+            assets.get(asset).join();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for every asset frame to be written.
+     * @throws IOException If an asset couldn't be rendered
+     */
+    public void awaitAll() throws IOException {
+        for (int i = 0; i < assets.size(); i++) {
+            await(i);
+        }
+    }
+
+    /**
+     * Runs an action the first time an asset frame fails, Ex. to stop the render instead of rendering the rest.
+     * @param action The action, given the error of the asset.
+     */
+    public void onFailure(Consumer<Throwable> action) {
+        AtomicBoolean failed = new AtomicBoolean();
+
+        for (CompletableFuture<Void> asset : assets) {
+            asset.whenComplete((result, error) -> {
+                if (error != null && failed.compareAndSet(false, true)) {
+                    action.accept(error);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops rendering. Frame tasks that haven't started never run, and their assets fail with a CancellationException.
+     * Frame tasks waiting for the memory budget stop waiting.
+     * Frame tasks already running finish their frame, use awaitIdle to wait for them.
+     */
+    public void cancel() {
+        tasks.cancel();
+
+        for (CompletableFuture<Void> frame : frames) {
+            frame.cancel(false);
+        }
+        for (CompletableFuture<Void> asset : assets) {
+            asset.cancel(false);
+        }
+    }
+
+    /**
+     * Waits until no frame task is running, Ex. before closing the spool they write to.
+     * Call it after cancel, otherwise more tasks can start once it returns.
+     */
+    public void awaitIdle() {
+        tasks.awaitIdle();
+    }
+
+    /**
+     * Runs a frame task once the memory budget has room for it.
+     * @param tasks The running frame tasks of the graph.
+     * @param budget The memory budget.
+     * @param bytes The estimated footprint of the task.
+     * @param task The frame task.
+     * @return The result of the task
+     */
+    private static <T> T admitted(Tasks tasks, MemoryBudget budget, long bytes, FrameTask<T> task) {
+        tasks.enter();
+        try {
+            int reserved = tasks.acquire(budget, bytes);
+            try {
+                // The graph may have been cancelled while waiting for the budget
+                tasks.checkCancelled();
+                return task.run();
+            } catch (IOException io) {
+                throw new UncheckedIOException(io);
+            } finally {
+                budget.release(reserved);
+            }
+        } finally {
+            tasks.exit();
+        }
+    }
+
+    /**
+     * This class counts the running frame tasks of a graph, so a cancelled graph can wait for them to finish.
+     */
+    private static final class Tasks {
+        private final Set<Thread> waiting = new HashSet<>();
+        private volatile boolean cancelled;
+        private int running;
+
+        /**
+         * Starts a frame task.
+         * @throws CancellationException If the graph was cancelled
+         */
+        synchronized void enter() {
+            running++;
+            if (cancelled) {
+                exit();
+                throw new CancellationException("Render cancelled");
+            }
+        }
+
+        synchronized void exit() {
+            running--;
+            if (running == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for room in the memory budget, until the graph is cancelled.
+         * @param budget The memory budget.
+         * @param bytes The estimated footprint of the task.
+         * @return The reserved amount
+         * @throws CancellationException If the graph was cancelled
+         */
+        int acquire(MemoryBudget budget, long bytes) {
+            Thread thread = Thread.currentThread();
+
+            synchronized (this) {
+                checkCancelled();
+                waiting.add(thread);
+            }
+
+            try {
+                return budget.acquireInterruptibly(bytes);
+            } catch (InterruptedException e) {
+                if (!cancelled) {
+                    thread.interrupt();
+                }
+                throw new CancellationException("Render cancelled");
+            } finally {
+                synchronized (this) {
+                    waiting.remove(thread);
+
+                    // Clears an interrupt from cancel that arrived once the budget was already acquired,
+                    // so it doesn't reach the pool thread's next task
+                    if (cancelled) {
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Cancels the graph, and interrupts the frame tasks waiting for the memory budget.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+
+            for (Thread thread : waiting) {
+                thread.interrupt();
+            }
+        }
+
+        void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException("Render cancelled");
+            }
+        }
+
+        synchronized void awaitIdle() {
+            boolean interrupted = false;
+
+            // Tasks must be waited for even if interrupted, they could still be writing to the spool
+            while (running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface FrameTask<T> {
+        T run() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface AssetWriter {
+        void write(int asset, BufferedImage image) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface AssetReader {
+        void read(int asset, BufferedImage image) throws IOException;
+    }
+}
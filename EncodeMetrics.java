@@ -0,0 +1,94 @@
+package com.h3music.videoeditor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects the encode throughput of every FFMPEG process started by SeqToVideo,
+ * to spot encoder slowdowns and to size render machines.
+ */
+public final class EncodeMetrics {
+    private static final EncodeMetrics SHARED = new EncodeMetrics();
+
+    private final AtomicLong processes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final LongAdder framesEncoded = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+
+    private volatile FfmpegProgress latest;
+
+    private EncodeMetrics() {}
+
+    /**
+     * Returns the process-wide metrics used by SeqToVideo.
+     * @return The shared metrics
+     */
+    public static EncodeMetrics shared() {
+        return SHARED;
+    }
+
+    /**
+     * Records a progress report of a running process.
+     * @param progress The progress report.
+     */
+    void progress(FfmpegProgress progress) {
+        latest = progress;
+    }
+
+    /**
+     * Records a finished process.
+     * @param last The last progress report of the process, null if it never reported progress.
+     * @param elapsedNanos The time the process ran for.
+     * @param exitCode The exit code of the process.
+     */
+    void finished(FfmpegProgress last, long elapsedNanos, int exitCode) {
+        processes.incrementAndGet();
+        if (exitCode != 0) {
+            failures.incrementAndGet();
+        }
+        if (last != null && last.frame() > 0) {
+            framesEncoded.add(last.frame());
+            encodeNanos.add(elapsedNanos);
+        }
+    }
+
+    public long processes() {
+        return processes.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    public long framesEncoded() {
+        return framesEncoded.sum();
+    }
+
+    /**
+     * The latest progress report of any process.
+     * @return The progress report, null if no process has reported progress
+     */
+    public FfmpegProgress latest() {
+        return latest;
+    }
+
+    /**
+     * The average encode throughput of finished processes. Processes running at the same time are each counted,
+     * so chunked encodes report the throughput of one encoder.
+     * @return The frames encoded per second of process time
+     */
+    public double averageFps() {
+        long nanos = encodeNanos.sum();
+        return nanos == 0 ? 0 : framesEncoded.sum() / (nanos / 1_000_000_000.0);
+    }
+
+    /**
+     * Summarizes the metrics.
+     * @return A line with the processes, frames and throughput of FFMPEG
+     */
+    @Override
+    public String toString() {
+        return String.format("FFMPEG: %d processes, %d failed, %d frames encoded, %.1f fps average",
+                processes(), failures(), framesEncoded(), averageFps());
+    }
+}
@@ -0,0 +1,181 @@
+package com.h3music.videoeditor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs an FFMPEG process with "-progress pipe:1", parsing its progress on a dedicated reader thread,
+ * and keeping the last lines of its log for diagnostics.
+ */
+final class FfmpegProcess {
+    /**
+     * The number of log lines kept for diagnostics.
+     */
+    static final int TAIL_LINES = 50;
+
+    private final Process process;
+    private final String outputFile;
+    private final FfmpegProgress.Listener listener;
+    private final ArrayDeque<String> tail = new ArrayDeque<>(TAIL_LINES);
+    private final Thread progressThread;
+    private final Thread logThread;
+    private final long startNanos = System.nanoTime();
+
+    private volatile FfmpegProgress latest;
+
+    private FfmpegProcess(Process process, String outputFile, FfmpegProgress.Listener listener) {
+        this.process = process;
+        this.outputFile = outputFile;
+        this.listener = listener;
+
+        progressThread = reader(process.getInputStream(), "ffmpeg-progress", this::readProgress);
+        logThread = reader(process.getErrorStream(), "ffmpeg-log", this::readLog);
+    }
+
+    /**
+     * Starts an FFMPEG process.
+     * @param command The FFMPEG command, with the FFMPEG path first and the output file last.
+     * @param listener The listener to report progress to.
+     * @return The running process
+     * @throws IOException If FFMPEG can't be started
+     */
+    static FfmpegProcess start(String[] command, FfmpegProgress.Listener listener) throws IOException {
+        List<String> progressCommand = new ArrayList<>(List.of(command));
+        progressCommand.addAll(1, List.of("-progress", "pipe:1", "-nostats"));
+
+        Process process = new ProcessBuilder(progressCommand).start();
+
+        return new FfmpegProcess(process, command[command.length - 1], listener);
+    }
+
+    /**
+     * The stdin of the process, to stream raw frames to.
+     * @return The output stream to the process's stdin
+     */
+    OutputStream stdin() {
+        return process.getOutputStream();
+    }
+
+    /**
+     * Waits for the process to exit and its output to be read.
+     * Prints the last lines of the log when FFMPEG fails.
+     * @return The exit code of FFMPEG
+     * @throws InterruptedException If interrupted while waiting for FFMPEG
+     */
+    int waitFor() throws InterruptedException {
+        int exitCode = process.waitFor();
+        progressThread.join();
+        logThread.join();
+
+        EncodeMetrics.shared().finished(latest, System.nanoTime() - startNanos, exitCode);
+
+        if (exitCode != 0) {
+            System.out.println("FFMPEG exited with code " + exitCode + " for " + outputFile);
+            tail().forEach(System.out::println);
+        }
+        return exitCode;
+    }
+
+    /**
+     * Stops the process, used when frames can no longer be streamed to it.
+     */
+    void destroy() {
+        process.destroy();
+    }
+
+    /**
+     * The latest progress report of the process.
+     * @return The progress report, null if the process hasn't reported progress
+     */
+    FfmpegProgress latest() {
+        return latest;
+    }
+
+    /**
+     * The last lines FFMPEG logged.
+     * @return Up to TAIL_LINES lines, oldest first
+     */
+    List<String> tail() {
+        synchronized (tail) {
+            return new ArrayList<>(tail);
+        }
+    }
+
+    private void readProgress(BufferedReader input) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        String line;
+
+        while ((line = input.readLine()) != null) {
+            int separator = line.indexOf('=');
+            if (separator < 0) {
+                continue;
+            }
+
+            String key = line.substring(0, separator).trim();
+            values.put(key, line.substring(separator + 1).trim());
+
+            // Each block of progress ends with the "progress" key
+            if (key.equals("progress")) {
+                FfmpegProgress progress = FfmpegProgress.parse(outputFile, values);
+                latest = progress;
+                EncodeMetrics.shared().progress(progress);
+                if (listener != null) {
+                    try {
+                        listener.progress(progress);
+                    } catch (RuntimeException e) {
+                        // A failing listener must not stop the reader, or FFMPEG would block on a full pipe
+                        e.printStackTrace();
+                    }
+                }
+                values.clear();
+            }
+        }
+    }
+
+    private void readLog(BufferedReader input) throws IOException {
+        String line;
+
+        while ((line = input.readLine()) != null) {
+            synchronized (tail) {
+                if (tail.size() == TAIL_LINES) {
+                    tail.removeFirst();
+                }
+                tail.addLast(line);
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread reading an output stream of the process, so a full pipe doesn't block FFMPEG.
+     * @param stream The output stream of the process.
+     * @param name The name of the thread.
+     * @param task The reading done on the thread.
+     * @return The started thread
+     */
+    private static Thread reader(InputStream stream, String name, ReadTask task) {
+        Thread thread = new Thread(() -> {
+            try (BufferedReader input = new BufferedReader(new InputStreamReader(stream))) {
+                task.read(input);
+            } catch (IOException e) {
+                System.out.println("An error occurred in the reading of FFMPEG");
+                e.printStackTrace();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @FunctionalInterface
+    private interface ReadTask {
+        void read(BufferedReader input) throws IOException;
+    }
+}
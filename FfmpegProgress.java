@@ -0,0 +1,80 @@
+package com.h3music.videoeditor;
+
+import java.util.Map;
+
+/**
+ * This record provides one progress report of an FFMPEG process, parsed from its "-progress" output.
+ * Values FFMPEG hasn't reported yet (Ex. "N/A" at the start of an encode) are -1.
+ * @param outputFile The file the FFMPEG process is exporting, to tell processes apart.
+ * @param frame The number of frames encoded so far.
+ * @param fps The frames encoded per second.
+ * @param speed The encode speed as a multiple of real time (Ex. 2.0 encodes 2 seconds of video per second).
+ * @param outTimeMicros The duration of video encoded so far, in microseconds.
+ * @param bitrate The bitrate of the output so far, in kbit/s.
+ * @param totalSize The size of the output so far, in bytes.
+ * @param end true if this is the last report of the process.
+ */
+public record FfmpegProgress(String outputFile, long frame, double fps, double speed, long outTimeMicros,
+                             double bitrate, long totalSize, boolean end) {
+
+    /**
+     * Listener for the progress of FFMPEG processes. Called on the thread reading the process's output,
+     * so listeners should return quickly.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void progress(FfmpegProgress progress);
+    }
+
+    /**
+     * Parses a block of "-progress" key/value pairs.
+     * @param outputFile The file the FFMPEG process is exporting.
+     * @param values The key/value pairs of the block, ending with the "progress" key.
+     * @return The progress report
+     */
+    static FfmpegProgress parse(String outputFile, Map<String, String> values) {
+        String outTime = values.getOrDefault("out_time_us", values.get("out_time_ms"));
+
+        return new FfmpegProgress(outputFile,
+                parseLong(values.get("frame")),
+                parseDouble(values.get("fps")),
+                parseDouble(stripSuffix(values.get("speed"), "x")),
+                parseLong(outTime),
+                parseDouble(stripSuffix(values.get("bitrate"), "kbits/s")),
+                parseLong(values.get("total_size")),
+                "end".equals(values.get("progress")));
+    }
+
+    /**
+     * The duration of video encoded so far.
+     * @return The duration in seconds, -1 if not reported yet
+     */
+    public double outTimeSeconds() {
+        return outTimeMicros < 0 ? -1 : outTimeMicros / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: frame %d, %.1f fps, %.2fx, %.2f s", outputFile, frame, fps, speed, outTimeSeconds());
+    }
+
+    private static String stripSuffix(String value, String suffix) {
+        return value != null && value.endsWith(suffix) ? value.substring(0, value.length() - suffix.length()) : value;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return value == null ? -1 : Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.h3music.videoeditor;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -29,9 +28,7 @@ public class FrameSequence {
             File frameListFile = createFrameSeqFile();
 
             int frameCount = (int) Math.ceil(duration * fps);
-            addGrainFrames(grainFolder, frameCount, frameListFile);
-
-            addGlitchFrames(glitchFolder, impactFrames, frameListFile);
+            addFrames(grainFolder, glitchFolder, frameCount, impactFrames, frameListFile);
 
             return frameListFile;
 
@@ -59,50 +56,50 @@ public class FrameSequence {
 
 
     /**
-     * Method to list Grain Frames in the Frame Sequence File
-     * @param grainFolder The folder to pull "film grain" frame assets
+     * Method to list the asset frame used at each frame of the video, in timeline order.
      * @param frameCount The total number of frames in the video. (fps * duration)
-     * @param frameList The Frame Sequence File
-     * @throws IOException
+     * @param grainCount The number of "film grain" frame assets
+     * @param glitchCount The number of "glitch effect" frame assets
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @return An array with the asset of each video frame. Values below grainCount are grain frames,
+     *         a value of grainCount + i is glitch frame i.
      */
-    private static void addGrainFrames(File grainFolder, int frameCount, File frameList) throws IOException {
-        FileWriter writer = new FileWriter(frameList,true);
-
-        int grainCount = directorySize(grainFolder);
-
-        for (int i = 0; i < frameCount; i++) {
-            writer.write("file '" + grainFolder + "\\" + (i % grainCount) + ".jpg'\n");
-        }
+    public static int[] order(int frameCount, int grainCount, int glitchCount, List<Integer> impactFrames) {
+        return Timeline.build(frameCount, grainCount, glitchCount, impactFrames).toOrder();
     }
 
     /**
-     * Method to list Glitch Frames in the Frame Sequence File
+     * Method to list the Grain and Glitch Frames in the Frame Sequence File
+     * @param grainFolder The folder to pull "film grain" frame assets
      * @param glitchFolder The folder to pull "glitch effect" frame assets
+     * @param frameCount The total number of frames in the video. (fps * duration)
      * @param impactFrames These are the frame locations where a glitch effect should be initiated
-     *  *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
      * @param frameList The Frame Sequence File
      * @throws IOException
      */
-    private static void addGlitchFrames(File glitchFolder, ArrayList<Integer> impactFrames, File frameList) throws IOException {
-        List<String> lines = Files.readAllLines(frameList.toPath());
+    private static void addFrames(File grainFolder, File glitchFolder, int frameCount,
+                                  ArrayList<Integer> impactFrames, File frameList) throws IOException {
 
+        int grainCount = directorySize(grainFolder);
         int glitchCount = directorySize(glitchFolder);
-        StringBuilder glitchFrames = new StringBuilder();
-
-        for (int i = 0; i < glitchCount; i++) {
-            glitchFrames.append("file '").append(glitchFolder).append("\\").append(i).append(".jpg'\n");
-        }
 
-        for (int i = 0; i < impactFrames.size(); i++) {
+        Timeline timeline = Timeline.build(frameCount, grainCount, glitchCount, impactFrames);
 
-            lines.add(impactFrames.get(i) - (i * glitchCount), String.valueOf(glitchFrames));
+        try (FileWriter writer = new FileWriter(frameList, true)) {
+            for (Timeline.Run run : timeline.runs()) {
+                for (int i = 0; i < run.length(); i++) {
+                    int frame = run.firstAsset() + i;
 
-            for (int j = 0; j < glitchCount; j++) {
-                lines.remove(lines.size() - 1);
+                    if (frame < grainCount) {
+                        writer.write("file '" + grainFolder + "\\" + frame + ".jpg'\n");
+                    } else {
+                        writer.write("file '" + glitchFolder + "\\" + (frame - grainCount) + ".jpg'\n");
+                    }
+                }
             }
         }
-
-        Files.write(frameList.toPath(), lines);
     }
 
     /**
@@ -0,0 +1,645 @@
+package com.h3music.videoeditor;
+
+import com.h3music.videoeditor.frame.FrameSpool;
+import com.h3music.videoeditor.grain.GrainCache;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * This class keeps the rendered frame assets of earlier renders on disk, so a background rendered again with
+ * different audio skips the grain and glitch stages entirely.
+ * Entries are keyed by a hash of everything the assets depend on: the source and grain file contents,
+ * the effect parameters, the glitch seed and the frame format. Each entry is a frame spool, and an index of
+ * the spool's frame checksums, written once the spool is complete. An entry is only used if every frame matches its checksum.
+ * While an entry is rendered, a journal next to its spool records the key, the frame size, and the checksum of each
+ * asset as it is written. If the render is killed or fails, the next render of the same key resumes the entry,
+ * and only renders the assets that are missing or don't match their checksum.
+ * The least recently used entries are evicted once the entries exceed a byte budget.
+ */
+public final class RenderCache {
+    /**
+     * The system property to configure the folder of the shared cache. Defaults to "./cache".
+     */
+    public static final String FOLDER_PROPERTY = "videoeditor.renderCacheDir";
+
+    /**
+     * The system property to configure the byte budget of the shared cache. Defaults to 4 GB, 0 disables the cache.
+     */
+    public static final String BUDGET_PROPERTY = "videoeditor.renderCacheBytes";
+
+    /**
+     * The version of the entry format. Part of every key, so entries of an older format are never used.
+     */
+    private static final String FORMAT = "bgr24-spool-1";
+
+    private static final int INDEX_MAGIC = 0x52434931;
+    private static final int JOURNAL_MAGIC = 0x52434a31;
+
+    private static final RenderCache SHARED = new RenderCache(
+            new File(System.getProperty(FOLDER_PROPERTY, "./cache")),
+            Long.getLong(BUDGET_PROPERTY, 4L << 30));
+
+    private final File folder;
+    private final long budgetBytes;
+    private final Set<Key> writing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a cache with its own folder and byte budget. Most callers should use the shared cache.
+     * @param folder The folder to store entries in. It is created when the first entry is stored.
+     * @param budgetBytes The max amount of disk space, in bytes, used by entries. 0 disables the cache.
+     */
+    public RenderCache(File folder, long budgetBytes) {
+        this.folder = folder;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the process-wide cache used by Video.render.
+     * @return The shared cache
+     */
+    public static RenderCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * This record provides the key of an entry.
+     * @param hash The SHA-256 hash of everything the entry's assets depend on, as hex.
+     */
+    public record Key(String hash) {
+
+        /**
+         * Builds the key of a render's assets.
+         * @param source The image file used as the background of the video.
+         * @param grainFrames The grain resource files overlaid on the background, in the order they are used.
+         * @param opacity The opacity of the grain over the source.
+         * @param amplification How strong the glitch effect is.
+         * @param seed The seed of the glitch offsets.
+         * @param grainCount The number of "film grain" frame assets
+         * @param glitchCount The number of "glitch effect" frame assets
+         * @return The key
+         * @throws IOException If a file can't be read
+         */
+        public static Key of(File source, List<File> grainFrames, double opacity, int amplification, long seed,
+                             int grainCount, int glitchCount) throws IOException {
+            MessageDigest digest = sha256();
+            GrainCache contents = GrainCache.shared();
+
+            StringBuilder key = new StringBuilder(FORMAT)
+                    .append('|').append(contents.contentHash(source))
+                    .append('|').append(opacity)
+                    .append('|').append(amplification)
+                    .append('|').append(seed)
+                    .append('|').append(grainCount)
+                    .append('|').append(glitchCount);
+
+            for (File grainFrame : grainFrames) {
+                key.append('|').append(contents.contentHash(grainFrame));
+            }
+
+            return new Key(HexFormat.of().formatHex(digest.digest(key.toString().getBytes(StandardCharsets.UTF_8))));
+        }
+    }
+
+    /**
+     * Opens the entry of a key, if it is stored and passes its integrity check.
+     * An entry that fails the check is deleted.
+     * @param key The key of the entry.
+     * @return The entry, with every asset already rendered, or null if the key isn't cached
+     */
+    public Entry lookup(Key key) {
+        if (budgetBytes <= 0 || writing.contains(key)) {
+            return null;
+        }
+
+        File spoolFile = spoolFile(key);
+        File indexFile = indexFile(key);
+
+        if (!indexFile.isFile() || !spoolFile.isFile()) {
+            return null;
+        }
+
+        FrameSpool spool = null;
+        try {
+            int[] checksums = readIndex(indexFile, spoolFile.length());
+            spool = FrameSpool.open(spoolFile);
+
+            if (!verify(spool, checksums)) {
+                throw new IOException("Checksum mismatch");
+            }
+
+            // The modified time of the index is the entry's last use
+            indexFile.setLastModified(System.currentTimeMillis());
+            deleteFile(journalFile(key));
+
+            BitSet rendered = new BitSet();
+            rendered.set(0, spool.frameCount());
+            return new Entry(key, spool, true, false, rendered, null);
+
+        } catch (IOException e) {
+            System.out.println("Render cache entry " + key.hash() + " failed its integrity check, rendering again.");
+            closeQuietly(spool);
+            delete(key);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the entry of a key, to render its assets into. The entry is stored once it is committed.
+     * If an earlier render of the key didn't commit its entry, the entry is resumed, keeping every asset that
+     * matches its checksum in the journal.
+     * If the cache is disabled, or the key is already being rendered, the entry is a temporary file that is never stored.
+     * @param key The key of the entry.
+     * @param width The width (X) of the assets in pixels.
+     * @param height The height (Y) of the assets in pixels.
+     * @param frameCount The number of assets.
+     * @return The entry, with no assets rendered, or the assets of the resumed render
+     * @throws IOException If the spool file can't be created
+     */
+    public Entry create(Key key, int width, int height, int frameCount) throws IOException {
+        if (budgetBytes <= 0 || !writing.add(key)) {
+            File temporary = File.createTempFile("render-", ".spool");
+            return new Entry(key, FrameSpool.create(temporary, width, height, frameCount), false, true,
+                    new BitSet(), null);
+        }
+
+        try {
+            Files.createDirectories(folder.toPath());
+            indexFile(key).delete();
+
+            Entry resumed = resume(key, width, height, frameCount);
+            if (resumed != null) {
+                return resumed;
+            }
+
+            FrameSpool spool = FrameSpool.create(spoolFile(key), width, height, frameCount);
+            try {
+                BitSet rendered = new BitSet();
+                return new Entry(key, spool, false, false, rendered,
+                        writeJournal(key, spool, rendered, new int[frameCount]));
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(spool);
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            writing.remove(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Resumes the entry an earlier render of a key didn't commit, Ex. because the render was killed or FFMPEG failed.
+     * Only assets with a journal record that matches their frame in the spool are kept.
+     * @param key The key of the entry.
+     * @param width The width (X) of the assets in pixels.
+     * @param height The height (Y) of the assets in pixels.
+     * @param frameCount The number of assets.
+     * @return The entry, or null if there is no entry to resume, or it can't be resumed
+     */
+    private Entry resume(Key key, int width, int height, int frameCount) {
+        File spoolFile = spoolFile(key);
+        File journalFile = journalFile(key);
+
+        if (!spoolFile.isFile() || !journalFile.isFile()) {
+            return null;
+        }
+
+        FrameSpool spool = null;
+        try {
+            spool = FrameSpool.open(spoolFile);
+
+            if (spool.width() != width || spool.height() != height || spool.frameCount() != frameCount) {
+                throw new IOException("Spool doesn't match the render");
+            }
+
+            int[] checksums = new int[frameCount];
+            BitSet rendered = readJournal(key, journalFile, spool, checksums);
+
+            // The journal is written again with only the verified assets, dropping a record cut off by a kill
+            DataOutputStream journal = writeJournal(key, spool, rendered, checksums);
+
+            System.out.println("Resuming render cache entry " + key.hash() + ", " + rendered.cardinality()
+                    + " / " + frameCount + " frame assets already rendered.");
+
+            return new Entry(key, spool, false, false, rendered, journal);
+
+        } catch (IOException e) {
+            System.out.println("Render cache entry " + key.hash() + " can't be resumed, rendering again.");
+            closeQuietly(spool);
+            delete(key);
+            return null;
+        }
+    }
+
+    public File folder() {
+        return folder;
+    }
+
+    public long budgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Finds the disk space used by every stored entry.
+     * @return The size of the entries in bytes
+     */
+    public long sizeBytes() {
+        return entries().stream().mapToLong(this::entryBytes).sum();
+    }
+
+    /**
+     * This class provides an entry of the cache: the spool of a render's assets.
+     */
+    public final class Entry implements AutoCloseable {
+        private final Key key;
+        private final FrameSpool spool;
+        private final boolean hit;
+        private final boolean temporary;
+        private final BitSet rendered;
+        private DataOutputStream journal;
+        private boolean committed;
+
+        private Entry(Key key, FrameSpool spool, boolean hit, boolean temporary, BitSet rendered,
+                      DataOutputStream journal) {
+            this.key = key;
+            this.spool = spool;
+            this.hit = hit;
+            this.temporary = temporary;
+            this.rendered = rendered;
+            this.journal = journal;
+        }
+
+        public FrameSpool spool() {
+            return spool;
+        }
+
+        /**
+         * Whether an asset was already rendered when the entry was opened, on a cache hit or by a resumed render.
+         * @param asset The asset's index.
+         * @return True if the asset doesn't need to be rendered
+         */
+        public boolean rendered(int asset) {
+            return rendered.get(asset);
+        }
+
+        /**
+         * Writes an asset to the spool, and records its checksum in the journal.
+         * @param asset The asset's index.
+         * @param image The asset, the same size as the spool's frames.
+         * @throws IOException If the journal can't be written
+         */
+        public void put(int asset, BufferedImage image) throws IOException {
+            spool.put(asset, image);
+
+            if (journal != null) {
+                record(asset, checksum(spool, asset));
+            }
+        }
+
+        private synchronized void record(int asset, int checksum) throws IOException {
+            if (journal == null) {
+                return;
+            }
+
+            // Flushed for each asset, so the record survives the process being killed
+            journal.writeInt(asset);
+            journal.writeInt(checksum);
+            journal.flush();
+        }
+
+        /**
+         * Whether the entry was already stored, with every asset rendered.
+         * @return True on a cache hit
+         */
+        public boolean hit() {
+            return hit;
+        }
+
+        /**
+         * Stores a created entry once every asset is rendered, and evicts the least recently used entries
+         * if the cache is over budget.
+         * @throws IOException If the index can't be written
+         */
+        public void commit() throws IOException {
+            if (hit || temporary || committed) {
+                return;
+            }
+
+            spool.force();
+            writeIndex(indexFile(key), spoolFile(key).length(), checksums(spool));
+            committed = true;
+
+            closeJournal();
+            deleteFile(journalFile(key));
+
+            evict(key);
+        }
+
+        /**
+         * Closes the spool. A created entry that wasn't committed is kept with its journal,
+         * so the next render of the key resumes it.
+         * @throws IOException If the spool can't be closed
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                closeJournal();
+                spool.close();
+            } finally {
+                if (temporary) {
+                    deleteFile(spool.file());
+                } else if (!hit) {
+                    writing.remove(key);
+                }
+            }
+        }
+
+        private synchronized void closeJournal() throws IOException {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is within budget.
+     * @param keep The key of an entry that is never evicted, Ex. The entry just stored.
+     */
+    private void evict(Key keep) {
+        // A spool with no index or journal is left by a render killed as it started, and is never used
+        File[] spools = folder.listFiles((dir, name) -> name.endsWith(".spool"));
+        for (File spool : spools == null ? new File[0] : spools) {
+            Key key = key(spool);
+
+            if (!indexFile(key).exists() && !journalFile(key).exists() && !writing.contains(key)) {
+                deleteFile(spool);
+            }
+        }
+
+        // Entries being resumed are evicted the same as stored entries, by their last use
+        List<File> entries = entries();
+        entries.sort(Comparator.comparingLong(File::lastModified));
+
+        long size = entries.stream().mapToLong(this::entryBytes).sum();
+
+        for (File entry : entries) {
+            if (size <= budgetBytes) {
+                break;
+            }
+
+            Key key = key(entry);
+
+            if (!key.equals(keep) && !writing.contains(key)) {
+                size -= entryBytes(entry);
+                delete(key);
+            }
+        }
+    }
+
+    /**
+     * Finds the index of every stored entry, and the journal of every entry that can be resumed.
+     * @return The files
+     */
+    private List<File> entries() {
+        File[] entries = folder.listFiles((dir, name) -> name.endsWith(".idx") || name.endsWith(".journal"));
+        return entries == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(entries));
+    }
+
+    private long entryBytes(File entry) {
+        return entry.length() + spoolFile(key(entry)).length();
+    }
+
+    private static Key key(File file) {
+        String name = file.getName();
+        return new Key(name.substring(0, name.lastIndexOf('.')));
+    }
+
+    /**
+     * Deletes an entry. The index and journal are deleted first, so a spool that can't be deleted yet is never used.
+     * @param key The key of the entry.
+     */
+    private void delete(Key key) {
+        deleteFile(indexFile(key));
+        deleteFile(journalFile(key));
+        deleteFile(spoolFile(key));
+    }
+
+    private File spoolFile(Key key) {
+        return new File(folder, key.hash() + ".spool");
+    }
+
+    private File indexFile(Key key) {
+        return new File(folder, key.hash() + ".idx");
+    }
+
+    private File journalFile(Key key) {
+        return new File(folder, key.hash() + ".journal");
+    }
+
+    /**
+     * Checks every frame of a spool against its checksum.
+     * @param spool The spool of the entry.
+     * @param checksums The checksum of each frame, from the entry's index.
+     * @return True if the spool is complete, and every frame matches its checksum
+     */
+    private static boolean verify(FrameSpool spool, int[] checksums) {
+        if (checksums.length != spool.frameCount()) {
+            return false;
+        }
+
+        for (int i = 0; i < checksums.length; i++) {
+            if (!spool.written(i) || checksum(spool, i) != checksums[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] checksums(FrameSpool spool) {
+        int[] checksums = new int[spool.frameCount()];
+
+        for (int i = 0; i < checksums.length; i++) {
+            checksums[i] = checksum(spool, i);
+        }
+        return checksums;
+    }
+
+    private static int checksum(FrameSpool spool, int frame) {
+        CRC32C crc = new CRC32C();
+        crc.update(spool.frame(frame));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the index of an entry. It is written to a temporary file and moved into place,
+     * so a partly written index is never read.
+     * @param indexFile The index file of the entry.
+     * @param spoolLength The size of the entry's spool in bytes.
+     * @param checksums The checksum of each frame.
+     * @throws IOException If the index can't be written
+     */
+    private static void writeIndex(File indexFile, long spoolLength, int[] checksums) throws IOException {
+        File temporary = new File(indexFile.getPath() + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary.toPath())))) {
+            output.writeInt(INDEX_MAGIC);
+            output.writeLong(spoolLength);
+            output.writeInt(checksums.length);
+
+            for (int checksum : checksums) {
+                output.writeInt(checksum);
+            }
+        }
+
+        Files.move(temporary.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the index of an entry.
+     * @param indexFile The index file of the entry.
+     * @param spoolLength The size of the entry's spool in bytes.
+     * @return The checksum of each frame
+     * @throws IOException If the index can't be read, or doesn't match the spool
+     */
+    private static int[] readIndex(File indexFile, long spoolLength) throws IOException {
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(indexFile.toPath()))) {
+            if (input.readInt() != INDEX_MAGIC || input.readLong() != spoolLength) {
+                throw new IOException("Index doesn't match its spool");
+            }
+
+            int[] checksums = new int[input.readInt()];
+            for (int i = 0; i < checksums.length; i++) {
+                checksums[i] = input.readInt();
+            }
+            return checksums;
+        }
+    }
+
+    /**
+     * Writes the journal of an entry, with a record for each asset already rendered, and opens it to record the rest.
+     * It is written to a temporary file and moved into place, so a partly written header is never read.
+     * @param key The key of the entry.
+     * @param spool The spool of the entry.
+     * @param rendered The assets already rendered.
+     * @param checksums The checksum of each asset already rendered.
+     * @return The journal, open to append records to
+     * @throws IOException If the journal can't be written
+     */
+    private DataOutputStream writeJournal(Key key, FrameSpool spool, BitSet rendered, int[] checksums)
+            throws IOException {
+        File journalFile = journalFile(key);
+        File temporary = new File(journalFile.getPath() + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary.toPath())))) {
+            output.writeInt(JOURNAL_MAGIC);
+            output.writeUTF(key.hash());
+            output.writeInt(spool.width());
+            output.writeInt(spool.height());
+            output.writeInt(spool.frameCount());
+
+            for (int i = rendered.nextSetBit(0); i >= 0; i = rendered.nextSetBit(i + 1)) {
+                output.writeInt(i);
+                output.writeInt(checksums[i]);
+            }
+        }
+
+        Files.move(temporary.toPath(), journalFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(journalFile.toPath(), StandardOpenOption.APPEND)));
+    }
+
+    /**
+     * Reads the journal of an entry, and checks each recorded asset against its frame in the spool.
+     * @param key The key of the entry.
+     * @param journalFile The journal file of the entry.
+     * @param spool The spool of the entry.
+     * @param checksums Filled with the checksum of each asset that matches its record.
+     * @return The assets that match their record
+     * @throws IOException If the journal can't be read, or doesn't match the spool
+     */
+    private static BitSet readJournal(Key key, File journalFile, FrameSpool spool, int[] checksums)
+            throws IOException {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(journalFile.toPath())))) {
+
+            if (input.readInt() != JOURNAL_MAGIC || !input.readUTF().equals(key.hash())
+                    || input.readInt() != spool.width() || input.readInt() != spool.height()
+                    || input.readInt() != spool.frameCount()) {
+                throw new IOException("Journal doesn't match its spool");
+            }
+
+            BitSet rendered = new BitSet(spool.frameCount());
+
+            while (true) {
+                int asset;
+                int checksum;
+                try {
+                    asset = input.readInt();
+                    checksum = input.readInt();
+                } catch (EOFException e) {
+                    // The end of the journal, or a record cut off by the render being killed
+                    break;
+                }
+
+                if (asset >= 0 && asset < spool.frameCount() && spool.written(asset)
+                        && checksum(spool, asset) == checksum) {
+                    rendered.set(asset);
+                    checksums[asset] = checksum;
+                }
+            }
+            return rendered;
+        }
+    }
+
+    private static void deleteFile(File file) {
+        // A mapped file can't be deleted on some systems until its mapping is garbage collected
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static void closeQuietly(FrameSpool spool) {
+        if (spool != null) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package com.h3music.videoeditor;
+
+import com.h3music.videoeditor.frame.FramePool;
+import com.h3music.videoeditor.frame.RenderScheduler;
+import com.h3music.videoeditor.grain.GrainCache;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class provides a resident render service, so the JIT, ImageIO, the render pools and the grain cache stay warm
+ * between videos, instead of being started again by every VideoEditor run.
+ * Jobs are submitted over a local HTTP API, and rendered by priority, then in the order they were submitted.
+ * Jobs with the same background are rendered one after another, the same as BatchRender,
+ * so the later ones reuse the cached assets.
+ * <p>
+ * POST /jobs?priority=N submits a job for each manifest line of the body (source,audio,output,impacts[,seed],
+ * the same as BatchRender). Higher priorities are rendered first, the default is 0.
+ * GET /jobs lists every job, GET /jobs/{id} reports a job, with the encode progress of a running job.
+ * GET /status summarizes the queue and the shared render caches. Responses are JSON.
+ */
+public final class RenderDaemon {
+    /**
+     * The system property to configure the port of the daemon. Defaults to 8470. The daemon only listens on loopback.
+     */
+    public static final String PORT_PROPERTY = "videoeditor.daemonPort";
+
+    /**
+     * The number of finished jobs kept for status requests. Older finished jobs are forgotten.
+     */
+    private static final int HISTORY = 256;
+
+    private final HttpServer server;
+    private final File grainResource;
+    private final Thread[] workers;
+
+    private final AtomicLong ids = new AtomicLong();
+    private final ConcurrentSkipListMap<Long, Job> jobs = new ConcurrentSkipListMap<>();
+    // The queue, the backgrounds being rendered and the stopped flag are guarded by the queue
+    private final TreeSet<Job> queue = new TreeSet<>(
+            Comparator.comparingInt(Job::priority).reversed().thenComparingLong(Job::id));
+    private final Set<String> rendering = new HashSet<>();
+    private boolean stopped;
+
+    // Progress reports are matched to their job by the output file FFMPEG is exporting
+    private final Map<String, Job> running = new ConcurrentHashMap<>();
+    private final FfmpegProgress.Listener listener = progress -> {
+        Job job = running.get(progress.outputFile());
+        if (job != null) {
+            job.progress = progress;
+        }
+    };
+
+    /**
+     * Creates a daemon. It doesn't accept jobs until it is started.
+     * @param port The port to listen on, 0 for any free port.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param maxJobs The max number of videos rendered at once.
+     * @throws IOException If the port can't be bound
+     */
+    public RenderDaemon(int port, File grainResource, int maxJobs) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.grainResource = grainResource;
+        this.workers = new Thread[Math.max(1, maxJobs)];
+
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/status", this::handleStatus);
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work, "daemon-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            RenderDaemon daemon = new RenderDaemon(Integer.getInteger(PORT_PROPERTY, 8470), VideoEditor.GRAIN_RESOURCE,
+                    Integer.getInteger(BatchRender.JOBS_PROPERTY, 2));
+            daemon.start();
+
+            System.out.println("Render daemon listening on http://" + daemon.address().getHostString() + ":"
+                    + daemon.address().getPort());
+
+        } catch (IOException e) {
+            System.out.println("An Error Occurred");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Starts accepting and rendering jobs.
+     */
+    public void start() {
+        SeqToVideo.addProgressListener(listener);
+        server.start();
+
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops accepting jobs. Jobs already rendering are finished, queued jobs are cancelled.
+     */
+    public void stop() {
+        server.stop(0);
+
+        List<Job> dropped;
+        synchronized (queue) {
+            stopped = true;
+            dropped = new ArrayList<>(queue);
+            queue.clear();
+            queue.notifyAll();
+        }
+
+        for (Job job : dropped) {
+            cancel(job);
+        }
+
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        SeqToVideo.removeProgressListener(listener);
+    }
+
+    public InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    /**
+     * Queues a job.
+     * @param record The video to render.
+     * @param priority The priority of the job, higher priorities are rendered first.
+     * @return The job
+     */
+    public Job submit(VideoRecord record, int priority) {
+        Job job = new Job(ids.incrementAndGet(), record, priority);
+
+        jobs.put(job.id(), job);
+        synchronized (queue) {
+            if (!stopped) {
+                queue.add(job);
+                queue.notifyAll();
+                return job;
+            }
+        }
+
+        cancel(job);
+        return job;
+    }
+
+    /**
+     * Finds a job that is queued, rendering, or recently finished.
+     * @param id The id of the job.
+     * @return The job, or null if there is no job with the id
+     */
+    public Job job(long id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * This enum provides the states of a job.
+     */
+    public enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    /**
+     * This class provides a job of the daemon: a video to render, and its state.
+     */
+    public static final class Job {
+        private final long id;
+        private final VideoRecord record;
+        private final int priority;
+        private final long submitted = System.currentTimeMillis();
+
+        private volatile State state = State.QUEUED;
+        private volatile long frameCount = -1;
+        private volatile FfmpegProgress progress;
+        private volatile long started;
+        private volatile long finished;
+
+        private Job(long id, VideoRecord record, int priority) {
+            this.id = id;
+            this.record = record;
+            this.priority = priority;
+        }
+
+        public long id() {
+            return id;
+        }
+
+        public VideoRecord record() {
+            return record;
+        }
+
+        public int priority() {
+            return priority;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        /**
+         * The latest encode progress of the job.
+         * @return The progress report, or null if FFMPEG hasn't reported progress yet
+         */
+        public FfmpegProgress progress() {
+            return progress;
+        }
+
+        /**
+         * Summarizes the job.
+         * @return The id, state, times and progress of the job, as a JSON object
+         */
+        public String toJson() {
+            FfmpegProgress latest = progress;
+            long now = System.currentTimeMillis();
+
+            StringBuilder json = new StringBuilder("{")
+                    .append("\"id\":").append(id)
+                    .append(",\"state\":\"").append(state).append('"')
+                    .append(",\"priority\":").append(priority)
+                    .append(",\"output\":").append(quote(record.outputFile().getPath()))
+                    .append(",\"seed\":").append(record.seed())
+                    .append(",\"queuedMs\":").append((started != 0 ? started : finished != 0 ? finished : now) - submitted)
+                    .append(",\"renderMs\":").append(started == 0 ? 0 : (finished == 0 ? now : finished) - started)
+                    .append(",\"frameCount\":").append(frameCount);
+
+            if (latest != null) {
+                json.append(",\"frame\":").append(latest.frame())
+                        .append(",\"fps\":").append(latest.fps())
+                        .append(",\"speed\":").append(latest.speed());
+            }
+            return json.append('}').toString();
+        }
+    }
+
+    /**
+     * Renders queued jobs until the daemon is stopped.
+     */
+    private void work() {
+        while (true) {
+            Job job;
+            try {
+                job = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (job == null) {
+                return;
+            }
+
+            try {
+                render(job);
+            } finally {
+                synchronized (queue) {
+                    rendering.remove(source(job));
+                    queue.notifyAll();
+                }
+            }
+
+            forgetFinished();
+        }
+    }
+
+    /**
+     * Waits for the next job to render: the first queued job whose background isn't already being rendered.
+     * Jobs with the same background wait for each other, the same as BatchRender's lanes,
+     * so only the first renders the assets, and the later ones reuse them from the render cache.
+     * @return The job, or null once the daemon is stopped
+     * @throws InterruptedException If the worker is interrupted while waiting
+     */
+    private Job next() throws InterruptedException {
+        synchronized (queue) {
+            while (!stopped) {
+                for (Iterator<Job> iterator = queue.iterator(); iterator.hasNext(); ) {
+                    Job job = iterator.next();
+
+                    if (rendering.add(source(job))) {
+                        iterator.remove();
+                        return job;
+                    }
+                }
+                queue.wait();
+            }
+            return null;
+        }
+    }
+
+    private static String source(Job job) {
+        return job.record.sourceFile().getAbsolutePath();
+    }
+
+    /**
+     * Renders a job on the calling worker.
+     * @param job The job.
+     */
+    private void render(Job job) {
+        String output = job.record.outputFile().getAbsolutePath();
+        job.started = System.currentTimeMillis();
+        job.state = State.RUNNING;
+        running.put(output, job);
+
+        try {
+            job.frameCount = (long) Math.ceil(VideoEditor.getAudioDuration(job.record.audio()) * 24);
+        } catch (Exception e) {
+            // The render reports the error
+        }
+
+        System.out.println("Processing job " + job.id + ": " + job.record.outputFile()
+                + " (Glitch seed " + job.record.seed() + ")");
+
+        boolean success = BatchRender.render(job.record, grainResource);
+
+        running.remove(output, job);
+        job.finished = System.currentTimeMillis();
+        job.state = success ? State.DONE : State.FAILED;
+    }
+
+    private static void cancel(Job job) {
+        job.finished = System.currentTimeMillis();
+        job.state = State.CANCELLED;
+    }
+
+    /**
+     * Forgets the oldest finished jobs, so the daemon's memory doesn't grow with every job.
+     */
+    private void forgetFinished() {
+        List<Long> finished = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.state == State.DONE || job.state == State.FAILED || job.state == State.CANCELLED) {
+                finished.add(job.id);
+            }
+        }
+
+        for (int i = 0; i < finished.size() - HISTORY; i++) {
+            jobs.remove(finished.get(i));
+        }
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            URI uri = exchange.getRequestURI();
+            String path = uri.getPath().replaceAll("/+$", "");
+
+            if (path.equals("/jobs") && exchange.getRequestMethod().equals("POST")) {
+                String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                int priority = Integer.parseInt(query(uri, "priority", "0"));
+
+                List<VideoRecord> records = BatchRender.parseManifest(body.lines().toList(), "Request");
+
+                if (records.isEmpty()) {
+                    respond(exchange, 400, "{\"error\":\"No jobs in the request\"}");
+                    return;
+                }
+
+                List<String> submitted = new ArrayList<>();
+                for (VideoRecord record : records) {
+                    submitted.add(submit(record, priority).toJson());
+                }
+                respond(exchange, 202, "[" + String.join(",", submitted) + "]");
+
+            } else if (path.equals("/jobs") && exchange.getRequestMethod().equals("GET")) {
+                List<String> listed = new ArrayList<>();
+                for (Job job : jobs.values()) {
+                    listed.add(job.toJson());
+                }
+                respond(exchange, 200, "[" + String.join(",", listed) + "]");
+
+            } else if (path.startsWith("/jobs/") && exchange.getRequestMethod().equals("GET")) {
+                Job job = job(Long.parseLong(path.substring("/jobs/".length())));
+
+                if (job == null) {
+                    respond(exchange, 404, "{\"error\":\"No such job\"}");
+                } else {
+                    respond(exchange, 200, job.toJson());
+                }
+
+            } else {
+                respond(exchange, 405, "{\"error\":\"Unsupported request\"}");
+            }
+
+        } catch (IOException | NumberFormatException e) {
+            // Only requests that couldn't be parsed get an error response, a failed response can't be answered again
+            if (exchange.getResponseCode() == -1) {
+                respond(exchange, 400, "{\"error\":" + quote(String.valueOf(e.getMessage())) + "}");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            long runningJobs = jobs.values().stream().filter(job -> job.state == State.RUNNING).count();
+            int queuedJobs;
+            synchronized (queue) {
+                queuedJobs = queue.size();
+            }
+
+            respond(exchange, 200, "{"
+                    + "\"queued\":" + queuedJobs
+                    + ",\"running\":" + runningJobs
+                    + ",\"workers\":" + workers.length
+                    + ",\"scheduler\":" + quote(RenderScheduler.shared().toString())
+                    + ",\"grainCache\":" + quote(GrainCache.shared().toString())
+                    + ",\"framePool\":" + quote(FramePool.shared().toString())
+                    + ",\"encode\":" + quote(EncodeMetrics.shared().toString())
+                    + "}");
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private static String query(URI uri, String name, String fallback) {
+        String query = uri.getQuery();
+
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith(name + "=")) {
+                    return pair.substring(name.length() + 1);
+                }
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * Quotes a string as a JSON string.
+     * @param value The string to quote.
+     * @return The JSON string
+     */
+    private static String quote(String value) {
+        StringBuilder json = new StringBuilder("\"");
+
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"').toString();
+    }
+}
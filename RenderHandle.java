@@ -0,0 +1,205 @@
+package com.h3music.videoeditor;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class provides a handle to a render started by Video.renderAsync: its progress, its result, and a way to cancel it.
+ * A render fails as soon as any of its frames fails, and a failed or cancelled render stops its frame tasks
+ * and FFMPEG, instead of rendering the rest of the video first.
+ * The result only completes once the render has stopped, so the output file and the render cache entry
+ * are no longer in use when join returns.
+ */
+public final class RenderHandle {
+    /**
+     * This enum provides the stages of a render.
+     * STARTING hashes and looks up the render cache, RENDERING renders and encodes the frames at once,
+     * FINISHING waits for the unused assets and stores them in the cache.
+     */
+    public enum Stage { STARTING, RENDERING, FINISHING, DONE, FAILED, CANCELLED }
+
+    /**
+     * This record provides the progress of a render.
+     * @param stage The stage of the render.
+     * @param assetsWritten The number of frame assets rendered, all of them on a render cache hit.
+     * @param assetCount The number of frame assets.
+     * @param framesStreamed The number of video frames sent to FFMPEG.
+     * @param frameCount The number of video frames.
+     */
+    public record Progress(Stage stage, int assetsWritten, int assetCount, int framesStreamed, int frameCount) {}
+
+    private final File outputFile;
+    private final int assetCount;
+    private final int frameCount;
+    private final CompletableFuture<File> result = new CompletableFuture<>();
+    private final List<Runnable> cancelHooks = new ArrayList<>();
+    private final AtomicInteger assetsWritten = new AtomicInteger();
+    private final AtomicInteger framesStreamed = new AtomicInteger();
+    private final AtomicReference<Throwable> stopped = new AtomicReference<>();
+
+    private volatile Stage stage = Stage.STARTING;
+
+    RenderHandle(File outputFile, int assetCount, int frameCount) {
+        this.outputFile = outputFile;
+        this.assetCount = assetCount;
+        this.frameCount = frameCount;
+    }
+
+    public File outputFile() {
+        return outputFile;
+    }
+
+    /**
+     * The result of the render, complete once the render has stopped. Completes with the output file,
+     * or exceptionally with the first error of the render, or a CancellationException if the render was cancelled.
+     * @return A copy of the result, cancelling it doesn't cancel the render
+     */
+    public CompletableFuture<File> result() {
+        return result.copy();
+    }
+
+    /**
+     * Waits for the render to finish. Once it returns, FFMPEG has exited and no frame task of the render is running.
+     * @return The output file
+     * @throws CompletionException If the render failed, with the first error of the render as the cause
+     * @throws CancellationException If the render was cancelled
+     */
+    public File join() {
+        return result.join();
+    }
+
+    /**
+     * Cancels the render. Frame tasks that haven't started never run, frame tasks waiting for the memory budget
+     * stop waiting, and FFMPEG is stopped. Frames already rendering finish first,
+     * the render's result completes with a CancellationException once they have.
+     * @return False if the render had already finished, failed or been cancelled
+     */
+    public boolean cancel() {
+        if (result.isDone()
+                || !stopped.compareAndSet(null, new CancellationException("Render of " + outputFile + " was cancelled"))) {
+            return false;
+        }
+        stage = Stage.CANCELLED;
+        runCancelHooks();
+        return true;
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    public boolean isCancelled() {
+        return stage == Stage.CANCELLED;
+    }
+
+    public Stage stage() {
+        return stage;
+    }
+
+    public Progress progress() {
+        return new Progress(stage, assetsWritten.get(), assetCount, framesStreamed.get(), frameCount);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Render of %s: %s, %d / %d assets, %d / %d frames", outputFile, stage,
+                assetsWritten.get(), assetCount, framesStreamed.get(), frameCount);
+    }
+
+    /**
+     * Registers a task that stops part of the render, run once if the render fails or is cancelled.
+     * Runs the task at once if the render has already failed or been cancelled.
+     * @param hook The task, Ex. destroying the FFMPEG process.
+     */
+    void onCancel(Runnable hook) {
+        synchronized (cancelHooks) {
+            if (stopped.get() == null) {
+                cancelHooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    /**
+     * Whether the render failed or was cancelled, and is stopping.
+     * @return True once the render should stop
+     */
+    boolean isStopped() {
+        return stopped.get() != null;
+    }
+
+    void stage(Stage stage) {
+        if (stopped.get() == null) {
+            this.stage = stage;
+        }
+    }
+
+    void assetWritten() {
+        assetsWritten.incrementAndGet();
+    }
+
+    void assetsWritten(int count) {
+        assetsWritten.set(count);
+    }
+
+    void frameStreamed() {
+        framesStreamed.incrementAndGet();
+    }
+
+    /**
+     * Completes the result, once the render has stopped. The render succeeded unless it failed or was cancelled.
+     * Called by the render thread, after every frame task and FFMPEG have stopped.
+     */
+    void finish() {
+        Throwable error = stopped.get();
+
+        if (error == null) {
+            stage = Stage.DONE;
+            result.complete(outputFile);
+        } else {
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Fails the render with its first error, and stops the rest of it. Later errors are ignored,
+     * they are usually caused by the render being stopped. The result completes once the render thread finishes.
+     * @param error The error.
+     */
+    void fail(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof UncheckedIOException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+
+        if (stopped.compareAndSet(null, cause)) {
+            stage = cause instanceof CancellationException ? Stage.CANCELLED : Stage.FAILED;
+            runCancelHooks();
+        }
+    }
+
+    private void runCancelHooks() {
+        List<Runnable> hooks;
+        synchronized (cancelHooks) {
+            hooks = new ArrayList<>(cancelHooks);
+            cancelHooks.clear();
+        }
+
+        for (Runnable hook : hooks) {
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
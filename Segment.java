@@ -0,0 +1,19 @@
+package com.h3music.videoeditor;
+
+/**
+ * This record provides a run of consecutive asset frames, encoded once and reused wherever it occurs in the video.
+ * Segments are listed by Timeline.segments.
+ * @param firstAsset The asset of the first frame of the segment. Values below the grain count are grain frames,
+ *                   a value of grain count + i is glitch frame i.
+ * @param length The number of frames in the segment.
+ */
+public record Segment(int firstAsset, int length) {
+
+    /**
+     * The name of the segment's encoded video file.
+     * @return The file name, unique to the segment's frames
+     */
+    public String fileName() {
+        return "segment_" + firstAsset + "_" + length + ".mp4";
+    }
+}
@@ -1,15 +1,60 @@
 package com.h3music.videoeditor;
 
-import java.io.BufferedReader;
+import com.h3music.videoeditor.frame.FramePool;
+import com.h3music.videoeditor.frame.FrameSource;
+import com.h3music.videoeditor.frame.RawFrames;
+
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class takes the rendered effect frame sequences, and the frameList Txt
  * file to create a FFMPEG command to render the video.
+ * Frames can also be streamed to FFMPEG as raw video, without writing them to files.
  */
 public class SeqToVideo {
+    // TODO: Change depending on where FFMPEG is installed
+    private static final String FFMPEG_PATH = "./ffmpeg/bin/ffmpeg";
+
+    private static final List<FfmpegProgress.Listener> LISTENERS = new CopyOnWriteArrayList<>();
+
+    /**
+     * The minimum duration, in seconds, of a chunk. Shorter chunks cost more to start FFMPEG for than they save.
+     * Also the keyframe interval of chunks.
+     */
+    public static final int MIN_CHUNK_SECONDS = 10;
+
+    /**
+     * Adds a listener for the progress of every FFMPEG process started by this class.
+     * The throughput of finished processes is also collected in EncodeMetrics.shared().
+     * @param listener The listener to add.
+     */
+    public static void addProgressListener(FfmpegProgress.Listener listener) {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Removes a progress listener.
+     * @param listener The listener to remove.
+     */
+    public static void removeProgressListener(FfmpegProgress.Listener listener) {
+        LISTENERS.remove(listener);
+    }
 
     /**
      * Creates and sends command to FFMPEG to build the video.
@@ -21,8 +66,7 @@ public class SeqToVideo {
     public static void export(File outputFile, int fps, File audio, File frameListFile) {
 
         try {
-            // TODO: Change depending on where FFMPEG is installed
-            String ffmpegPath = "./ffmpeg/bin/ffmpeg";
+            String ffmpegPath = FFMPEG_PATH;
 
             String frameList = frameListFile.getAbsolutePath();
             String outputPath = outputFile.getAbsolutePath();
@@ -32,12 +76,7 @@ public class SeqToVideo {
                     "0", "-i", frameList, "-i", String.valueOf(audio), "-crf", "30", outputPath
             };
 
-            ProcessBuilder pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-            flushInputStreamReader(process);
-
-            int exitCode = process.waitFor();
+            int exitCode = FfmpegProcess.start(command, SeqToVideo::reportProgress).waitFor();
 
             if (exitCode == 0) {
                 System.out.println("Video export successful!");
@@ -51,21 +90,456 @@ public class SeqToVideo {
     }
 
     /**
-     * Clears Input Stream so FFMPEG doesn't obstruct Java.
-     * @param process Input process to clear input stream for.
+     * Creates and sends command to FFMPEG to build the video, streaming every frame to FFMPEG's stdin as raw video.
+     * Frames are rendered on the executor, at most window frames ahead of the frame being written,
+     * and written in timeline order. No frame files are written or decoded.
+     * @param outputFile A file to export the video to.
+     * @param fps the frames per second of the video.
+     * @param audio An audio file to include in the video file. (WAV required)
+     * @param width The width (X) of the video in pixels.
+     * @param height The height (Y) of the video in pixels.
+     * @param frameCount The total number of frames in the video. (fps * duration)
+     * @param frames The source that renders each frame of the video.
+     * @param executor The executor to render frames on.
+     * @param window The max number of frames rendered but not yet written. Each one holds a frame sized buffer.
+     */
+    public static void stream(File outputFile, int fps, File audio, int width, int height, int frameCount,
+                              FrameSource frames, Executor executor, int window) {
+
+        String[] command = streamCommand(outputFile, fps, audio, width, height);
+
+        try {
+            int exitCode = pipe(command, width, height, frameCount, frames, executor, window, null);
+
+            if (exitCode == 0) {
+                System.out.println("Video export successful!");
+            } else {
+                System.out.println("Video export failed.");
+            }
+        } catch (IOException|InterruptedException|RuntimeException e) {
+            System.out.println("An error occurred in the FFMPEG process");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Streams every frame to FFMPEG as raw video, the same as stream, for a render with a handle.
+     * FFMPEG is stopped if the render is cancelled, and failures are thrown instead of printed.
+     * @param outputFile A file to export the video to.
+     * @param fps the frames per second of the video.
+     * @param audio An audio file to include in the video file. (WAV required)
+     * @param width The width (X) of the video in pixels.
+     * @param height The height (Y) of the video in pixels.
+     * @param frameCount The total number of frames in the video. (fps * duration)
+     * @param frames The source that renders each frame of the video.
+     * @param executor The executor to render frames on.
+     * @param window The max number of frames rendered but not yet written. Each one holds a frame sized buffer.
+     * @param handle The handle of the render.
+     * @throws IOException If a frame can't be rendered or written, or FFMPEG fails
+     * @throws InterruptedException If the render is cancelled while waiting for a frame or FFMPEG
+     */
+    static void stream(File outputFile, int fps, File audio, int width, int height, int frameCount,
+                       FrameSource frames, Executor executor, int window, RenderHandle handle)
+            throws IOException, InterruptedException {
+
+        String[] command = streamCommand(outputFile, fps, audio, width, height);
+
+        int exitCode = pipe(command, width, height, frameCount, frames, executor, window, handle);
+
+        if (exitCode != 0) {
+            throw new IOException("FFMPEG exited with code " + exitCode + " for " + outputFile);
+        }
+        System.out.println("Video export successful!");
+    }
+
+    /**
+     * Creates and sends commands to FFMPEG to build the video from segments. The grain loop and each glitch burst
+     * are encoded once as closed GOP segments, and the video is joined from the segments without re-encoding,
+     * so the export time scales with the number of unique segments, not the duration of the video.
+     * @param outputFile A file to export the video to.
+     * @param fps the frames per second of the video.
+     * @param audio An audio file to include in the video file. (WAV required)
+     * @param width The width (X) of the video in pixels.
+     * @param height The height (Y) of the video in pixels.
+     * @param segments The segments of the video, in timeline order.
+     * @param assets The source that renders each asset frame, given the asset's index.
+     * @param executor The executor to render frames on.
+     * @param window The max number of frames rendered but not yet written. Each one holds a frame sized buffer.
+     * @param segmentFolder A folder to store the encoded segments and the segment list in.
      */
-    private static void flushInputStreamReader (Process process) {
+    public static void exportSegments(File outputFile, int fps, File audio, int width, int height,
+                                      List<Segment> segments, FrameSource assets, Executor executor,
+                                      int window, File segmentFolder) {
         try {
-            BufferedReader input = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()));
-            String line;
-            StringBuilder s = new StringBuilder();
-            while ((line = input.readLine()) != null) {
-                s.append(line);
-            }
-        } catch (IOException e) {
-            System.out.println("An error occurred in the flushing of FFMPEG");
+            Set<Segment> encoded = new HashSet<>();
+
+            for (Segment segment : segments) {
+                if (!encoded.add(segment)) {
+                    continue;
+                }
+
+                String[] command = encodeCommand(width, height, fps, segment.length(), 0,
+                        new File(segmentFolder, segment.fileName()));
+
+                FrameSource frames = (frame, buffer) -> assets.render(segment.firstAsset() + frame, buffer);
+
+                if (pipe(command, width, height, segment.length(), frames, executor, window, null) != 0) {
+                    System.out.println("Segment export failed.");
+                    return;
+                }
+            }
+
+            System.out.println(encoded.size() + " unique segments encoded for " + segments.size() + " segments");
+
+            List<File> files = new ArrayList<>(segments.size());
+            List<Integer> lengths = new ArrayList<>(segments.size());
+
+            for (Segment segment : segments) {
+                files.add(new File(segmentFolder, segment.fileName()));
+                lengths.add(segment.length());
+            }
+
+            File segmentList = writeConcatList(new File(segmentFolder, "segments.txt"), files, lengths, fps);
+
+            if (concat(segmentList, audio, outputFile) == 0) {
+                System.out.println("Video export successful!");
+            } else {
+                System.out.println("Video export failed.");
+            }
+        } catch (IOException|InterruptedException|RuntimeException e) {
+            System.out.println("An error occurred in the FFMPEG process");
             e.printStackTrace();
         }
     }
+
+    /**
+     * Creates and sends commands to FFMPEG to build the video in chunks, each encoded by its own FFMPEG process.
+     * Each chunk starts with a closed GOP keyframe, so the chunks are joined without re-encoding,
+     * and the audio is added once at the end. Short videos, where splitting costs more than it saves,
+     * are encoded by a single FFMPEG process instead.
+     * @param outputFile A file to export the video to.
+     * @param fps the frames per second of the video.
+     * @param audio An audio file to include in the video file. (WAV required)
+     * @param width The width (X) of the video in pixels.
+     * @param height The height (Y) of the video in pixels.
+     * @param frameCount The total number of frames in the video. (fps * duration)
+     * @param chunkStarts The first frame of each chunk, in order, starting at 0. (From Timeline.chunkStarts)
+     * @param frames The source that renders each frame of the video.
+     * @param executor The executor to render frames on.
+     * @param window The max number of frames rendered but not yet written, shared by every chunk.
+     * @param cpuBudget The number of CPU threads FFMPEG may use, split between the chunks encoded at once.
+     * @param chunkFolder A folder to store the encoded chunks and the chunk list in.
+     */
+    public static void exportChunks(File outputFile, int fps, File audio, int width, int height, int frameCount,
+                                    int[] chunkStarts, FrameSource frames, Executor executor, int window,
+                                    int cpuBudget, File chunkFolder) {
+
+        if (chunkStarts.length <= 1 || frameCount < MIN_CHUNK_SECONDS * fps * 2) {
+            stream(outputFile, fps, audio, width, height, frameCount, frames, executor, window);
+            return;
+        }
+
+        int chunkCount = chunkStarts.length;
+        int concurrency = Math.max(1, Math.min(chunkCount, cpuBudget));
+        int threads = Math.max(1, cpuBudget / concurrency);
+        int chunkWindow = Math.max(1, window / concurrency);
+
+        List<File> files = new ArrayList<>(chunkCount);
+        List<Integer> lengths = new ArrayList<>(chunkCount);
+        List<CompletableFuture<Integer>> encoding = new ArrayList<>(chunkCount);
+
+        // Each chunk's FFMPEG process is fed from its own thread, frames are still rendered on the executor
+        ExecutorService chunkService = Executors.newFixedThreadPool(concurrency);
+
+        try {
+            for (int i = 0; i < chunkCount; i++) {
+                int start = chunkStarts[i];
+                int length = (i + 1 < chunkCount ? chunkStarts[i + 1] : frameCount) - start;
+
+                File chunkFile = new File(chunkFolder, "chunk_" + i + ".mp4");
+                String[] command = encodeCommand(width, height, fps, fps * MIN_CHUNK_SECONDS, threads, chunkFile);
+                FrameSource chunkFrames = (frame, buffer) -> frames.render(start + frame, buffer);
+
+                files.add(chunkFile);
+                lengths.add(length);
+                encoding.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return pipe(command, width, height, length, chunkFrames, executor, chunkWindow, null);
+                    } catch (IOException io) {
+                        throw new UncheckedIOException(io);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException(e);
+                    }
+                }, chunkService));
+            }
+
+            for (CompletableFuture<Integer> chunk : encoding) {
+                if (awaitExitCode(chunk) != 0) {
+                    System.out.println("Chunk export failed.");
+                    return;
+                }
+            }
+
+            System.out.println(chunkCount + " chunks encoded, " + concurrency + " at a time");
+
+            File chunkList = writeConcatList(new File(chunkFolder, "chunks.txt"), files, lengths, fps);
+
+            if (concat(chunkList, audio, outputFile) == 0) {
+                System.out.println("Video export successful!");
+            } else {
+                System.out.println("Video export failed.");
+            }
+        } catch (IOException|InterruptedException|RuntimeException e) {
+            System.out.println("An error occurred in the FFMPEG process");
+            e.printStackTrace();
+        } finally {
+            chunkService.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the FFMPEG command to encode raw video from stdin into a closed GOP video file, without audio.
+     * The file starts with a keyframe, and no frame references another GOP, so files can be joined by stream copy.
+     * @param width The width (X) of the video in pixels.
+     * @param height The height (Y) of the video in pixels.
+     * @param fps the frames per second of the video.
+     * @param gop The max number of frames between keyframes.
+     * @param threads The number of threads FFMPEG may use, 0 to let FFMPEG decide.
+     * @param output A file to export the video to.
+     * @return The FFMPEG command
+     */
+    private static String[] encodeCommand(int width, int height, int fps, int gop, int threads, File output) {
+        List<String> command = new ArrayList<>(List.of(
+                FFMPEG_PATH, "-y", "-f", "rawvideo", "-pix_fmt", RawFrames.PIXEL_FORMAT,
+                "-s", width + "x" + height, "-r", String.valueOf(fps), "-i", "pipe:0",
+                "-c:v", "libx264", "-crf", "30", "-pix_fmt", "yuv420p",
+                "-flags", "+cgop", "-g", String.valueOf(gop), "-an"));
+
+        if (threads > 0) {
+            command.addAll(List.of("-threads", String.valueOf(threads)));
+        }
+        command.add(output.getAbsolutePath());
+
+        return command.toArray(new String[0]);
+    }
+
+    /**
+     * Joins the videos of a concat list without re-encoding, and adds the audio.
+     * @param list The FFMPEG concat list of the videos.
+     * @param audio An audio file to include in the video file. (WAV required)
+     * @param outputFile A file to export the video to.
+     * @return The exit code of FFMPEG
+     * @throws IOException If FFMPEG can't be started
+     * @throws InterruptedException If interrupted while waiting for FFMPEG
+     */
+    private static int concat(File list, File audio, File outputFile) throws IOException, InterruptedException {
+        String[] command = new String[]{
+                FFMPEG_PATH, "-y", "-f", "concat", "-safe", "0", "-i", list.getAbsolutePath(),
+                "-i", String.valueOf(audio), "-c:v", "copy", outputFile.getAbsolutePath()
+        };
+
+        return FfmpegProcess.start(command, SeqToVideo::reportProgress).waitFor();
+    }
+
+    /**
+     * Writes an FFMPEG concat list of videos, in timeline order.
+     * Each video is listed once per use, with its duration, instead of one line per frame.
+     * @param list The concat list file to write.
+     * @param files The videos, in timeline order.
+     * @param lengths The number of frames in each video.
+     * @param fps the frames per second of the video.
+     * @return The concat list file
+     * @throws IOException If the list can't be written
+     */
+    private static File writeConcatList(File list, List<File> files, List<Integer> lengths, int fps)
+            throws IOException {
+
+        try (FileWriter writer = new FileWriter(list, false)) {
+            for (int i = 0; i < files.size(); i++) {
+                String path = files.get(i).getAbsolutePath();
+                writer.write("file '" + path.replace("'", "'\\''") + "'\n");
+                writer.write("duration " + ((double) lengths.get(i) / fps) + "\n");
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Creates the FFMPEG command to encode raw video streamed to stdin.
+     * @param outputFile A file to export the video to.
+     * @param fps the frames per second of the video.
+     * @param audio An audio file to include in the video file. (WAV required)
+     * @param width The width (X) of the video in pixels.
+     * @param height The height (Y) of the video in pixels.
+     * @return The FFMPEG command
+     */
+    private static String[] streamCommand(File outputFile, int fps, File audio, int width, int height) {
+        return new String[]{
+                FFMPEG_PATH, "-y", "-f", "rawvideo", "-pix_fmt", RawFrames.PIXEL_FORMAT,
+                "-s", width + "x" + height, "-r", String.valueOf(fps), "-i", "pipe:0",
+                "-i", String.valueOf(audio), "-crf", "30", "-pix_fmt", "yuv420p", outputFile.getAbsolutePath()
+        };
+    }
+
+    /**
+     * Starts an FFMPEG process reading raw video from stdin, and streams every frame to it.
+     * @param command The FFMPEG command, reading raw video from "pipe:0".
+     * @param width The width (X) of the video in pixels.
+     * @param height The height (Y) of the video in pixels.
+     * @param frameCount The total number of frames to stream.
+     * @param frames The source that renders each frame.
+     * @param executor The executor to render frames on.
+     * @param window The max number of frames rendered but not yet written.
+     * @param handle The handle of the render, to stop FFMPEG if the render is cancelled. Null if there is none.
+     * @return The exit code of FFMPEG
+     * @throws IOException If a frame can't be rendered or written
+     * @throws InterruptedException If interrupted while waiting for a frame or FFMPEG
+     */
+    private static int pipe(String[] command, int width, int height, int frameCount,
+                            FrameSource frames, Executor executor, int window, RenderHandle handle)
+            throws IOException, InterruptedException {
+
+        FfmpegProcess process = FfmpegProcess.start(command, SeqToVideo::reportProgress);
+
+        if (handle != null) {
+            handle.onCancel(process::destroy);
+        }
+
+        try {
+            try (WritableByteChannel channel = Channels.newChannel(process.stdin())) {
+                writeFrames(channel, width, height, frameCount, frames, executor, Math.max(1, window));
+            }
+
+            return process.waitFor();
+        } catch (IOException|InterruptedException|RuntimeException e) {
+            process.destroy();
+            throw e;
+        }
+    }
+
+    /**
+     * Renders every frame and writes it to the channel in timeline order.
+     * A ring of window buffers is reused, the buffer of frame i is reused for frame i + window once frame i is written.
+     * @param channel The channel to FFMPEG's stdin.
+     * @param width The width (X) of the video in pixels.
+     * @param height The height (Y) of the video in pixels.
+     * @param frameCount The total number of frames in the video.
+     * @param frames The source that renders each frame of the video.
+     * @param executor The executor to render frames on.
+     * @param window The max number of frames rendered but not yet written.
+     * @throws IOException If a frame can't be rendered or written
+     * @throws InterruptedException If interrupted while waiting for a frame to render
+     */
+    private static void writeFrames(WritableByteChannel channel, int width, int height, int frameCount,
+                                    FrameSource frames, Executor executor, int window)
+            throws IOException, InterruptedException {
+
+        int frameSize = RawFrames.size(width, height);
+        ByteBuffer[] buffers = new ByteBuffer[Math.min(window, Math.max(frameCount, 1))];
+        List<CompletableFuture<ByteBuffer>> rendering = new ArrayList<>(buffers.length);
+        List<FramePool.Lease<ByteBuffer>> leases = new ArrayList<>(buffers.length);
+
+        for (int i = 0; i < buffers.length; i++) {
+            leases.add(FramePool.shared().buffer(frameSize));
+            buffers[i] = leases.get(i).get();
+        }
+
+        int submitted = 0;
+        boolean complete = false;
+
+        try {
+            for (; submitted < Math.min(buffers.length, frameCount); submitted++) {
+                rendering.add(render(frames, submitted, buffers[submitted], frameSize, executor));
+            }
+
+            for (int i = 0; i < frameCount; i++) {
+                int slot = i % buffers.length;
+                ByteBuffer buffer = await(rendering.get(slot));
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+
+                if (submitted < frameCount) {
+                    rendering.set(slot, render(frames, submitted, buffer, frameSize, executor));
+                    submitted++;
+                }
+            }
+            complete = true;
+        } finally {
+            for (CompletableFuture<ByteBuffer> future : rendering) {
+                future.cancel(false);
+            }
+
+            // A cancelled frame may still be rendering into its buffer, so buffers only return to the pool
+            // once every frame is written
+            if (complete) {
+                leases.forEach(FramePool.Lease::close);
+            }
+        }
+    }
+
+    /**
+     * Starts rendering one frame into a buffer.
+     * @param frames The source that renders each frame of the video.
+     * @param frame The frame of the video to render.
+     * @param buffer The buffer to render the frame into.
+     * @param frameSize The size of a raw frame in bytes.
+     * @param executor The executor to render the frame on.
+     * @return The buffer, flipped for writing, once the frame is rendered
+     */
+    private static CompletableFuture<ByteBuffer> render(FrameSource frames, int frame, ByteBuffer buffer,
+                                                        int frameSize, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            buffer.clear();
+            try {
+                frames.render(frame, buffer);
+            } catch (IOException io) {
+                throw new UncheckedIOException(io);
+            }
+
+            if (buffer.position() != frameSize) {
+                throw new IllegalStateException("Frame " + frame + " is " + buffer.position()
+                        + " bytes, expected " + frameSize);
+            }
+            return buffer.flip();
+        }, executor);
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            } else if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static int awaitExitCode(CompletableFuture<Integer> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            } else if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Reports the progress of an FFMPEG process to every listener.
+     * @param progress The progress report.
+     */
+    private static void reportProgress(FfmpegProgress progress) {
+        for (FfmpegProgress.Listener listener : LISTENERS) {
+            listener.progress(progress);
+        }
+    }
 }
@@ -0,0 +1,215 @@
+package com.h3music.videoeditor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class provides the asset frame used at each frame of the video, stored as runs of consecutive asset frames.
+ * The grain loop plays through the video, pausing for a glitch burst at each impact frame.
+ * Assets below the grain count are grain frames, an asset of grain count + i is glitch frame i.
+ */
+public final class Timeline {
+    private final int frameCount;
+    private final int grainCount;
+    private final List<Run> runs;
+
+    /**
+     * This record provides a run of consecutive asset frames.
+     * @param firstAsset The asset of the first frame of the run.
+     * @param startFrame The frame of the video the run starts at.
+     * @param length The number of frames in the run.
+     */
+    public record Run(int firstAsset, int startFrame, int length) {}
+
+    private Timeline(int frameCount, int grainCount, List<Run> runs) {
+        this.frameCount = frameCount;
+        this.grainCount = grainCount;
+        this.runs = Collections.unmodifiableList(runs);
+    }
+
+    /**
+     * Builds the timeline in one pass over the impacts.
+     * A glitch burst starts exactly at each impact frame, and is cut short by the next impact or the end of the video.
+     * @param frameCount The total number of frames in the video. (fps * duration)
+     * @param grainCount The number of "film grain" frame assets
+     * @param glitchCount The number of "glitch effect" frame assets
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @return The timeline
+     */
+    public static Timeline build(int frameCount, int grainCount, int glitchCount, List<Integer> impactFrames) {
+        if (grainCount <= 0) {
+            throw new IllegalArgumentException("A timeline needs at least one grain frame");
+        }
+
+        int[] impacts = impactFrames.stream().mapToInt(Integer::intValue).sorted().toArray();
+
+        List<Run> runs = new ArrayList<>();
+        int frame = 0;
+        int grainI = 0;
+
+        for (int i = 0; i < impacts.length; i++) {
+            int impact = Math.max(impacts[i], 0);
+
+            if (impact >= frameCount) {
+                break;
+            }
+
+            grainI = addGrain(runs, frame, impact, grainI, grainCount);
+
+            int next = i + 1 < impacts.length ? impacts[i + 1] : frameCount;
+            int burstEnd = Math.min(Math.min(impact + glitchCount, next), frameCount);
+
+            // A repeated impact frame would make an empty burst
+            if (burstEnd > impact) {
+                runs.add(new Run(grainCount, impact, burstEnd - impact));
+            }
+            frame = burstEnd;
+        }
+
+        addGrain(runs, frame, frameCount, grainI, grainCount);
+
+        return new Timeline(frameCount, grainCount, runs);
+    }
+
+    /**
+     * Adds the runs of the grain loop between two frames, split where the loop wraps around.
+     * @param runs The runs to add to.
+     * @param start The first frame of the grain.
+     * @param end The frame after the last frame of the grain.
+     * @param grainI The grain frame to continue the loop from.
+     * @param grainCount The number of "film grain" frame assets
+     * @return The grain frame to continue the loop from after the end frame
+     */
+    private static int addGrain(List<Run> runs, int start, int end, int grainI, int grainCount) {
+        for (int frame = start; frame < end; ) {
+            int length = Math.min(grainCount - grainI, end - frame);
+
+            runs.add(new Run(grainI, frame, length));
+
+            frame += length;
+            grainI = (grainI + length) % grainCount;
+        }
+        return grainI;
+    }
+
+    public int frameCount() {
+        return frameCount;
+    }
+
+    public int grainCount() {
+        return grainCount;
+    }
+
+    public List<Run> runs() {
+        return runs;
+    }
+
+    /**
+     * Finds the asset used at a frame of the video.
+     * @param frame The frame of the video.
+     * @return The asset of the frame
+     */
+    public int asset(int frame) {
+        int low = 0;
+        int high = runs.size() - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Run run = runs.get(middle);
+
+            if (frame < run.startFrame()) {
+                high = middle - 1;
+            } else if (frame >= run.startFrame() + run.length()) {
+                low = middle + 1;
+            } else {
+                return run.firstAsset() + frame - run.startFrame();
+            }
+        }
+        throw new IndexOutOfBoundsException("Frame " + frame + " of " + frameCount);
+    }
+
+    /**
+     * Expands the timeline to the asset used at each frame of the video.
+     * @return An array with the asset of each video frame
+     */
+    public int[] toOrder() {
+        int[] order = new int[frameCount];
+
+        for (Run run : runs) {
+            for (int i = 0; i < run.length(); i++) {
+                order[run.startFrame() + i] = run.firstAsset() + i;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Lists the segments of the video, one for each run.
+     * @return The segments of the video, in timeline order
+     */
+    public List<Segment> segments() {
+        List<Segment> segments = new ArrayList<>(runs.size());
+
+        for (Run run : runs) {
+            segments.add(new Segment(run.firstAsset(), run.length()));
+        }
+        return segments;
+    }
+
+    /**
+     * Splits the timeline into chunks of about the same length, to encode in parallel.
+     * Chunks start at the start of a run where possible, so a glitch burst or grain loop isn't split between chunks.
+     * @param chunkCount The number of chunks to split the timeline into.
+     * @param minChunkFrames The minimum number of frames in a chunk.
+     * @return The first frame of each chunk, in order, starting at 0
+     */
+    public int[] chunkStarts(int chunkCount, int minChunkFrames) {
+        chunkCount = Math.max(1, Math.min(chunkCount, frameCount / Math.max(1, minChunkFrames)));
+
+        int[] starts = new int[chunkCount];
+        int count = 1;
+
+        for (int i = 1; i < chunkCount; i++) {
+            int start = nearestRunStart((int) ((long) frameCount * i / chunkCount));
+
+            if (start - starts[count - 1] >= minChunkFrames && frameCount - start >= minChunkFrames) {
+                starts[count++] = start;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    /**
+     * Finds the start of the run nearest to a frame.
+     * @param frame The frame of the video.
+     * @return The start frame of the nearest run
+     */
+    private int nearestRunStart(int frame) {
+        int low = 0;
+        int high = runs.size() - 1;
+
+        // Finds the last run starting at or before the frame
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (runs.get(middle).startFrame() <= frame) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        Run run = runs.get(low);
+        int end = run.startFrame() + run.length();
+
+        return frame - run.startFrame() <= end - frame || end >= frameCount ? run.startFrame() : end;
+    }
+
+    @Override
+    public String toString() {
+        return "Timeline" + runs;
+    }
+}
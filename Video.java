@@ -1,30 +1,110 @@
 package com.h3music.videoeditor;
 
+import com.h3music.videoeditor.frame.FrameCodec;
+import com.h3music.videoeditor.frame.FramePool;
+import com.h3music.videoeditor.frame.FrameSource;
+import com.h3music.videoeditor.frame.FrameSpool;
+import com.h3music.videoeditor.frame.MemoryBudget;
+import com.h3music.videoeditor.frame.RawFrames;
+import com.h3music.videoeditor.frame.RenderScheduler;
 import com.h3music.videoeditor.glitch.GlitchEffect;
+import com.h3music.videoeditor.glitch.GrainGlitch;
+import com.h3music.videoeditor.grain.GrainCache;
 import com.h3music.videoeditor.grain.GrainEffect;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 
 /**
  * This class renders the video based on inputted parameters.
  */
 public class Video {
+    private static final int GRAIN_COUNT = 96;
+    private static final int GLITCH_COUNT = 48;
+    private static final double OPACITY = .3;
+    private static final int AMPLIFICATION = 5;
+
+    /**
+     * Method to render the video. The grain and glitch frame assets are written to their output folders,
+     * and each video frame is streamed to FFMPEG as soon as its asset is written.
+     * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param scheduler The scheduler to render frames on, usually RenderScheduler.shared().
+     *                  If heap memory errors are occurring, use a scheduler with lower parallelism.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param grainOutput The folder to write "film grain" frame assets to.
+     * @param glitchOutput The folder to write "glitch effect" frame assets to.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void render(double duration, int fps, ArrayList<Integer> impactFrames, long seed,
+                              RenderScheduler scheduler, File sourceFile, File grainResource, File grainOutput,
+                              File glitchOutput, File audio, File outputFile) {
+
+        ArrayList<File> grainResourceFiles = grainFiles(grainResource);
+
+        try {
+            BufferedImage source = ImageIO.read(sourceFile);
+
+            // Lossless assets are faster to write and read back, unless the disk can't hold them
+            FrameCodec codec = FrameCodec.forRender(grainOutput, (long) source.getWidth() * source.getHeight(),
+                    GRAIN_COUNT + GLITCH_COUNT);
+
+            // Grain, glitch and export overlap, each frame only waits for the frames it's made from
+            EffectGraph graph = EffectGraph.start(source, grainResourceFiles, grainOutput, glitchOutput,
+                    GRAIN_COUNT, GLITCH_COUNT, OPACITY, AMPLIFICATION, seed, scheduler, codec);
+
+            int frameCount = (int) Math.ceil(duration * fps);
+            Timeline timeline = Timeline.build(frameCount, GRAIN_COUNT, GLITCH_COUNT, impactFrames);
+
+            FrameSource frames = (frame, buffer) -> {
+                int assetI = timeline.asset(frame);
+                graph.await(assetI);
+
+                File asset = assetI < GRAIN_COUNT ? new File(grainOutput, codec.fileName(assetI))
+                        : new File(glitchOutput, codec.fileName(assetI - GRAIN_COUNT));
+
+                RawFrames.put(codec.decode(asset), buffer);
+            };
+
+            SeqToVideo.stream(outputFile, fps, audio, source.getWidth(), source.getHeight(), frameCount,
+                    frames, scheduler.executor(), scheduler.parallelism() * 2);
+
+            // Assets the timeline never used are still written, the same as the staged render
+            graph.awaitAll();
+
+            printRenderStats(scheduler);
+
+        } catch (IOException|RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
-     * Method to render the video.
+     * Overloaded method to render the video, processing at most maxThreads frames at once on the shared scheduler.
      * @param duration The duration, in seconds, of the video.
      * @param fps The frames per second of the video.
      * @param impactFrames These are the frame locations where a glitch effect should be initiated
      *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
-     * @param maxThreads Hard limits the amount of threads used by the method.
+     * @param maxThreads Hard limits the amount of frames processed at once.
      *                   If heap memory errors are occurring lower this number.
      *                   Performance has diminishing returns when maxThreads > physical CPU cores.
      * @param sourceFile An image file used as the background of the video.
      * @param grainResource The folder to pull grain resource frames to overlay.
-     * @param grainOutput The folder to pull "film grain" frame assets.
-     * @param glitchOutput The folder to pull "glitch effect" frame assets.
+     * @param grainOutput The folder to write "film grain" frame assets to.
+     * @param glitchOutput The folder to write "glitch effect" frame assets to.
      * @param audio An audio file to include in the video file. (WAV required).
      * @param outputFile A file to export the video to.
      */
@@ -32,43 +112,252 @@ public class Video {
                               int maxThreads, File sourceFile, File grainResource, File grainOutput,
                               File glitchOutput, File audio, File outputFile) {
 
-        ArrayList<File> grainResourceFiles = new ArrayList<>(
-                Arrays.asList(Objects.requireNonNull(grainResource.listFiles())));
+        render(duration, fps, impactFrames, GlitchEffect.defaultSeed(),
+                RenderScheduler.shared().withParallelism(maxThreads), sourceFile, grainResource, grainOutput,
+                glitchOutput, audio, outputFile);
+    }
+
+    /**
+     * Method to render the video with the frame assets stored in a spool file, instead of folders of JPEG files.
+     * Grain, glitch and export overlap the same as the folder based render. Assets are stored as raw frames,
+     * so they are never encoded as JPEG files and read back, and are only compressed once, by FFMPEG.
+     * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param scheduler The scheduler to render frames on, usually RenderScheduler.shared().
+     *                  If heap memory errors are occurring, use a scheduler with lower parallelism.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param spoolFile A file to store the frame assets in. It is replaced if it exists.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void render(double duration, int fps, ArrayList<Integer> impactFrames, long seed,
+                              RenderScheduler scheduler, File sourceFile, File grainResource, File spoolFile,
+                              File audio, File outputFile) {
+
+        ArrayList<File> grainResourceFiles = grainFiles(grainResource);
+
+        try {
+            BufferedImage source = ImageIO.read(sourceFile);
+
+            try (FrameSpool spool = FrameSpool.create(spoolFile, source.getWidth(), source.getHeight(),
+                    GRAIN_COUNT + GLITCH_COUNT)) {
+
+                EffectGraph graph = EffectGraph.start(source, grainResourceFiles, spool,
+                        GRAIN_COUNT, GLITCH_COUNT, OPACITY, AMPLIFICATION, seed, scheduler);
+
+                streamSpool(duration, fps, impactFrames, scheduler, spool, graph, audio, outputFile, null);
+            }
 
-        GrainEffect.grain(sourceFile,grainResourceFiles, grainOutput,.3,96, maxThreads);
+            printRenderStats(scheduler);
 
-        ArrayList<File> grainFiles = new ArrayList<>(
-                Arrays.asList(Objects.requireNonNull(grainOutput.listFiles())));
+        } catch (IOException|InterruptedException|RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
 
-        GlitchEffect.glitch(grainFiles, glitchOutput, 5, maxThreads, 48);
+    /**
+     * Method to render the video with the frame assets stored in a render cache.
+     * Assets depend only on the source, the grain resources and the effect parameters, not the audio or timeline,
+     * so if the same background was rendered before, the grain and glitch stages are skipped entirely
+     * and the cached assets are streamed to FFMPEG. Otherwise, the assets are rendered into a new cache entry,
+     * or into the entry of an earlier render that was interrupted, only rendering the assets it is missing.
+     * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param scheduler The scheduler to render frames on, usually RenderScheduler.shared().
+     *                  If heap memory errors are occurring, use a scheduler with lower parallelism.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param cache The cache to store the frame assets in, usually RenderCache.shared().
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void render(double duration, int fps, ArrayList<Integer> impactFrames, long seed,
+                              RenderScheduler scheduler, File sourceFile, File grainResource, RenderCache cache,
+                              File audio, File outputFile) {
+        try {
+            renderAsync(duration, fps, impactFrames, seed, scheduler, sourceFile, grainResource, cache,
+                    audio, outputFile).join();
 
-        File frameList = FrameSequence.create(duration, fps, grainOutput, glitchOutput, impactFrames);
+            printRenderStats(scheduler);
 
-        SeqToVideo.export(outputFile, fps, audio, frameList);
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
+        } catch (CancellationException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Overloaded method to render the video. Assumes 24 fps, and 8 maxThreads
+     * Method to start rendering the video with the frame assets stored in a render cache, the same as render,
+     * without waiting for it. The render runs on its own thread, and its frames on the scheduler.
+     * The render fails as soon as any frame fails, and can be cancelled with the returned handle.
      * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
      * @param impactFrames These are the frame locations where a glitch effect should be initiated
      *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param scheduler The scheduler to render frames on, usually RenderScheduler.shared().
+     *                  If heap memory errors are occurring, use a scheduler with lower parallelism.
      * @param sourceFile An image file used as the background of the video.
      * @param grainResource The folder to pull grain resource frames to overlay.
-     * @param grainOutput The folder to pull "film grain" frame assets.
-     * @param glitchOutput The folder to pull "glitch effect" frame assets.
+     * @param cache The cache to store the frame assets in, usually RenderCache.shared().
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     * @return The handle of the render
+     */
+    public static RenderHandle renderAsync(double duration, int fps, ArrayList<Integer> impactFrames, long seed,
+                                           RenderScheduler scheduler, File sourceFile, File grainResource,
+                                           RenderCache cache, File audio, File outputFile) {
+
+        int frameCount = (int) Math.ceil(duration * fps);
+        RenderHandle handle = new RenderHandle(outputFile, GRAIN_COUNT + GLITCH_COUNT, frameCount);
+
+        Thread thread = new Thread(() -> {
+            try {
+                renderCached(duration, fps, impactFrames, seed, scheduler, sourceFile, grainResource, cache,
+                        audio, outputFile, handle);
+
+            } catch (IOException|InterruptedException|RuntimeException e) {
+                handle.fail(e);
+            } finally {
+                // The render has stopped, the cache entry is closed and FFMPEG has exited
+                handle.finish();
+            }
+        }, "video-" + outputFile.getName());
+
+        // Interrupts the render thread while it waits for frames or FFMPEG
+        handle.onCancel(thread::interrupt);
+        thread.start();
+
+        return handle;
+    }
+
+    /**
+     * Renders the video with the frame assets stored in a render cache, reporting to a handle.
+     * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
+     * @param impactFrames The frame locations where a glitch effect should be initiated.
+     * @param seed The seed of the glitch offsets.
+     * @param scheduler The scheduler to render frames on.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param cache The cache to store the frame assets in.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     * @param handle The handle of the render.
+     * @throws IOException If a file can't be read or written, or FFMPEG fails
+     * @throws InterruptedException If the render is cancelled
+     */
+    private static void renderCached(double duration, int fps, ArrayList<Integer> impactFrames, long seed,
+                                     RenderScheduler scheduler, File sourceFile, File grainResource,
+                                     RenderCache cache, File audio, File outputFile, RenderHandle handle)
+            throws IOException, InterruptedException {
+
+        ArrayList<File> grainResourceFiles = grainFiles(grainResource);
+
+        RenderCache.Key key = RenderCache.Key.of(sourceFile, grainResourceFiles, OPACITY, AMPLIFICATION,
+                seed, GRAIN_COUNT, GLITCH_COUNT);
+
+        RenderCache.Entry cached = cache.lookup(key);
+
+        if (cached != null) {
+            System.out.println("Render cache hit, skipping the grain and glitch stages.");
+            handle.assetsWritten(GRAIN_COUNT + GLITCH_COUNT);
+
+            try (RenderCache.Entry entry = cached) {
+                streamSpool(duration, fps, impactFrames, scheduler, entry.spool(), null, audio, outputFile, handle);
+            }
+        } else {
+            System.out.println("Render cache miss, rendering the grain and glitch stages.");
+
+            BufferedImage source = ImageIO.read(sourceFile);
+
+            try (RenderCache.Entry entry = cache.create(key, source.getWidth(), source.getHeight(),
+                    GRAIN_COUNT + GLITCH_COUNT)) {
+
+                if (handle.isStopped()) {
+                    throw new CancellationException("Render of " + outputFile + " was cancelled");
+                }
+
+                EffectGraph graph = EffectGraph.start(source, grainResourceFiles, entry,
+                        GRAIN_COUNT, GLITCH_COUNT, OPACITY, AMPLIFICATION, seed, scheduler);
+
+                streamSpool(duration, fps, impactFrames, scheduler, entry.spool(), graph, audio, outputFile, handle);
+
+                // Every asset is written, so the entry is complete
+                entry.commit();
+            }
+        }
+    }
+
+    /**
+     * Overloaded method to render the video. Assumes 24 fps, and the shared render scheduler
+     * @param duration The duration, in seconds, of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param grainOutput The folder to write "film grain" frame assets to.
+     * @param glitchOutput The folder to write "glitch effect" frame assets to.
      * @param audio An audio file to include in the video file. (WAV required).
      * @param outputFile A file to export the video to.
      */
     public static void render(double duration,  ArrayList<Integer> impactFrames,  File sourceFile,
                               File grainResource, File grainOutput, File glitchOutput, File audio, File outputFile) {
 
-        render(duration, 24, impactFrames, 8, sourceFile, grainResource,
-                grainOutput, glitchOutput, audio, outputFile);
+        render(duration, 24, impactFrames, GlitchEffect.defaultSeed(), RenderScheduler.shared(), sourceFile,
+                grainResource, grainOutput, glitchOutput, audio, outputFile);
     }
 
     /**
-     * Overloaded method to render the video. Assumes 24 fps, and 8 maxThreads,
-     * creates temporary directories to store temporary files, and then deletes temp files.
+     * Overloaded method to render the video. Assumes 24 fps, and the shared render scheduler,
+     * and stores the frame assets in the shared render cache.
+     * @param duration The duration, in seconds, of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void render(double duration,  ArrayList<Integer> impactFrames, long seed, File sourceFile,
+                              File grainResource, File audio, File outputFile) {
+
+        render(duration, 24, impactFrames, seed, RenderScheduler.shared(), sourceFile, grainResource,
+                RenderCache.shared(), audio, outputFile);
+    }
+
+    /**
+     * Overloaded method to start rendering the video without waiting for it. Assumes 24 fps,
+     * and the shared render scheduler, and stores the frame assets in the shared render cache.
+     * @param duration The duration, in seconds, of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     * @return The handle of the render
+     */
+    public static RenderHandle renderAsync(double duration, ArrayList<Integer> impactFrames, long seed,
+                                           File sourceFile, File grainResource, File audio, File outputFile) {
+
+        return renderAsync(duration, 24, impactFrames, seed, RenderScheduler.shared(), sourceFile, grainResource,
+                RenderCache.shared(), audio, outputFile);
+    }
+
+    /**
+     * Overloaded method to render the video. Assumes 24 fps, the shared render scheduler and the default seed,
+     * and stores the frame assets in the shared render cache.
      * @param duration The duration, in seconds, of the video.
      * @param impactFrames These are the frame locations where a glitch effect should be initiated
      *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
@@ -80,23 +369,401 @@ public class Video {
     public static void render(double duration,  ArrayList<Integer> impactFrames, File sourceFile,
                               File grainResource, File audio, File outputFile) {
 
+        render(duration, impactFrames, GlitchEffect.defaultSeed(), sourceFile, grainResource, audio, outputFile);
+    }
+
+    /**
+     * Method to render the video by streaming frames straight to FFMPEG.
+     * Each asset frame is rendered once, into a temporary spool of raw frames, and every video frame that uses it
+     * is sent to FFMPEG from the spool as raw video. No JPEG frame files are written,
+     * and frames are only compressed once, by FFMPEG. The spool is deleted when the render ends.
+     * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param scheduler The scheduler to render frames on, usually RenderScheduler.shared().
+     *                  If heap memory errors are occurring, use a scheduler with lower parallelism.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void renderStream(double duration, int fps, ArrayList<Integer> impactFrames, long seed,
+                                    RenderScheduler scheduler, File sourceFile, File grainResource,
+                                    File audio, File outputFile) {
+
+        ArrayList<File> grainResourceFiles = grainFiles(grainResource);
+        File spoolFile = null;
+
+        try {
+            BufferedImage source = ImageIO.read(sourceFile);
+            spoolFile = File.createTempFile("stream-", ".spool");
+
+            // Frames that reuse an asset are copied from the spool, instead of rendering the asset again
+            try (FrameSpool spool = FrameSpool.create(spoolFile, source.getWidth(), source.getHeight(),
+                    GRAIN_COUNT + GLITCH_COUNT)) {
+
+                EffectGraph graph = EffectGraph.start(source, grainResourceFiles, spool,
+                        GRAIN_COUNT, GLITCH_COUNT, OPACITY, AMPLIFICATION, seed, scheduler);
+
+                streamSpool(duration, fps, impactFrames, scheduler, spool, graph, audio, outputFile, null);
+            }
+
+            printRenderStats(scheduler);
+
+        } catch (IOException|InterruptedException|RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            deleteSpool(spoolFile);
+        }
+    }
+
+    /**
+     * Overloaded method to render the video by streaming frames straight to FFMPEG.
+     * Assumes 24 fps, and the shared render scheduler
+     * @param duration The duration, in seconds, of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void renderStream(double duration, ArrayList<Integer> impactFrames, File sourceFile,
+                                    File grainResource, File audio, File outputFile) {
+
+        renderStream(duration, 24, impactFrames, GlitchEffect.defaultSeed(), RenderScheduler.shared(), sourceFile,
+                grainResource,
+                audio, outputFile);
+    }
+
+    /**
+     * Method to render the video from segments. The grain loop and each glitch burst are encoded once,
+     * and joined into the video without re-encoding the repeated frames.
+     * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param scheduler The scheduler to render frames on, usually RenderScheduler.shared().
+     *                  If heap memory errors are occurring, use a scheduler with lower parallelism.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param segmentFolder The folder to store the encoded segments in.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void renderSegments(double duration, int fps, ArrayList<Integer> impactFrames, long seed,
+                                      RenderScheduler scheduler, File sourceFile, File grainResource,
+                                      File segmentFolder, File audio, File outputFile) {
+        try {
+            BufferedImage source = ImageIO.read(sourceFile);
+            FrameSource assets = assets(source, grainResource, seed, scheduler.budget());
+
+            int frameCount = (int) Math.ceil(duration * fps);
+            Timeline timeline = Timeline.build(frameCount, GRAIN_COUNT, GLITCH_COUNT, impactFrames);
+
+            SeqToVideo.exportSegments(outputFile, fps, audio, source.getWidth(), source.getHeight(),
+                    timeline.segments(), assets, scheduler.executor(), scheduler.parallelism() * 2, segmentFolder);
+
+            printRenderStats(scheduler);
+
+        } catch (IOException io) {
+            io.printStackTrace();
+        }
+    }
+
+    /**
+     * Overloaded method to render the video from segments. Assumes 24 fps, and the shared render scheduler,
+     * creates a temporary directory to store the segments, and then deletes it.
+     * @param duration The duration, in seconds, of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void renderSegments(double duration, ArrayList<Integer> impactFrames, File sourceFile,
+                                      File grainResource, File audio, File outputFile) {
+
         File tmpFolder = new File("./tmp");
-        File grainOutput = new File("./tmp/grain");
-        File glitchOutput = new File("./tmp/glitch");
+        File segmentFolder = new File("./tmp/segments");
+
+        tmpFolder.mkdir();
+        segmentFolder.mkdir();
+
+        renderSegments(duration, 24, impactFrames, GlitchEffect.defaultSeed(), RenderScheduler.shared(), sourceFile,
+                grainResource,
+                segmentFolder, audio, outputFile);
+
+        deleteDirectory(tmpFolder);
+    }
 
-        if (tmpFolder.exists()) {
-            tmpFolder.delete();
+    /**
+     * Method to render the video in chunks, each encoded by its own FFMPEG process at the same time.
+     * Each asset frame is rendered once into a temporary spool, and the chunks stream their frames from it,
+     * the same as renderStream. Short videos are encoded by a single FFMPEG process.
+     * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param seed The seed of the glitch offsets. The same seed always renders the same glitch frames.
+     * @param scheduler The scheduler to render frames on, usually RenderScheduler.shared().
+     *                  If heap memory errors are occurring, use a scheduler with lower parallelism.
+     * @param cpuBudget The number of CPU threads FFMPEG may use, split between the chunks.
+     *                  Also the max number of chunks encoded at once.
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param chunkFolder The folder to store the encoded chunks in.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void renderChunks(double duration, int fps, ArrayList<Integer> impactFrames, long seed,
+                                    RenderScheduler scheduler, int cpuBudget, File sourceFile,
+                                    File grainResource, File chunkFolder, File audio, File outputFile) {
+
+        ArrayList<File> grainResourceFiles = grainFiles(grainResource);
+        File spoolFile = null;
+
+        try {
+            BufferedImage source = ImageIO.read(sourceFile);
+            spoolFile = File.createTempFile("chunks-", ".spool");
+
+            int frameCount = (int) Math.ceil(duration * fps);
+            Timeline timeline = Timeline.build(frameCount, GRAIN_COUNT, GLITCH_COUNT, impactFrames);
+            int[] chunkStarts = timeline.chunkStarts(cpuBudget, fps * SeqToVideo.MIN_CHUNK_SECONDS);
+
+            // Chunks only parallelize the encode, an asset used by several chunks is still rendered once
+            try (FrameSpool spool = FrameSpool.create(spoolFile, source.getWidth(), source.getHeight(),
+                    GRAIN_COUNT + GLITCH_COUNT)) {
+
+                EffectGraph graph = EffectGraph.start(source, grainResourceFiles, spool,
+                        GRAIN_COUNT, GLITCH_COUNT, OPACITY, AMPLIFICATION, seed, scheduler);
+
+                try {
+                    SeqToVideo.exportChunks(outputFile, fps, audio, source.getWidth(), source.getHeight(),
+                            frameCount, chunkStarts, spoolFrames(timeline, spool, graph, null),
+                            scheduler.executor(), scheduler.parallelism() * 2, cpuBudget, chunkFolder);
+
+                    // The spool is only closed once no frame task can still be writing to it
+                    graph.awaitAll();
+                } catch (IOException|RuntimeException e) {
+                    graph.cancel();
+                    graph.awaitIdle();
+                    throw e;
+                }
+            }
+
+            printRenderStats(scheduler);
+
+        } catch (IOException|RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            deleteSpool(spoolFile);
         }
+    }
+
+    /**
+     * Overloaded method to render the video in chunks.
+     * Assumes 24 fps, the shared render scheduler, and every CPU thread for FFMPEG,
+     * creates a temporary directory to store the chunks, and then deletes it.
+     * @param duration The duration, in seconds, of the video.
+     * @param impactFrames These are the frame locations where a glitch effect should be initiated
+     *                     (In a 24 fps video, a value of 24 would occur 1 second into the video).
+     * @param sourceFile An image file used as the background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     */
+    public static void renderChunks(double duration, ArrayList<Integer> impactFrames, File sourceFile,
+                                    File grainResource, File audio, File outputFile) {
+
+        File tmpFolder = new File("./tmp");
+        File chunkFolder = new File("./tmp/chunks");
 
         tmpFolder.mkdir();
-        grainOutput.mkdir();
-        glitchOutput.mkdir();
+        chunkFolder.mkdir();
 
-        render(duration, 24, impactFrames, 8, sourceFile, grainResource, grainOutput, glitchOutput, audio, outputFile);
+        renderChunks(duration, 24, impactFrames, GlitchEffect.defaultSeed(), RenderScheduler.shared(),
+                Runtime.getRuntime().availableProcessors(),
+                sourceFile, grainResource, chunkFolder, audio, outputFile);
 
         deleteDirectory(tmpFolder);
     }
 
+    /**
+     * Streams the video frames to FFMPEG from a spool of frame assets.
+     * @param duration The duration, in seconds, of the video.
+     * @param fps The frames per second of the video.
+     * @param impactFrames The frame locations where a glitch effect should be initiated.
+     * @param scheduler The scheduler to stream frames on.
+     * @param spool The spool of frame assets.
+     * @param graph The graph still writing the assets, or null if every asset is already written.
+     * @param audio An audio file to include in the video file. (WAV required).
+     * @param outputFile A file to export the video to.
+     * @param handle The handle to report progress to, and stop the render when it fails. Null if there is none.
+     * @throws IOException If the video can't be written
+     * @throws InterruptedException If the render is cancelled
+     */
+    private static void streamSpool(double duration, int fps, ArrayList<Integer> impactFrames,
+                                    RenderScheduler scheduler, FrameSpool spool, EffectGraph graph,
+                                    File audio, File outputFile, RenderHandle handle)
+            throws IOException, InterruptedException {
+
+        int frameCount = (int) Math.ceil(duration * fps);
+        Timeline timeline = Timeline.build(frameCount, GRAIN_COUNT, GLITCH_COUNT, impactFrames);
+
+        if (handle != null && graph != null) {
+            // A failed asset fails the render at once, instead of when the timeline reaches it
+            graph.onFailure(handle::fail);
+            handle.onCancel(graph::cancel);
+
+            for (int i = 0; i < GRAIN_COUNT + GLITCH_COUNT; i++) {
+                graph.asset(i).thenRun(handle::assetWritten);
+            }
+        }
+
+        FrameSource frames = spoolFrames(timeline, spool, graph, handle);
+
+        try {
+            if (handle == null) {
+                SeqToVideo.stream(outputFile, fps, audio, spool.width(), spool.height(), frameCount,
+                        frames, scheduler.executor(), scheduler.parallelism() * 2);
+            } else {
+                handle.stage(RenderHandle.Stage.RENDERING);
+
+                SeqToVideo.stream(outputFile, fps, audio, spool.width(), spool.height(), frameCount,
+                        frames, scheduler.executor(), scheduler.parallelism() * 2, handle);
+
+                handle.stage(RenderHandle.Stage.FINISHING);
+            }
+
+            // The spool is only closed once no frame task can still be writing to it
+            if (graph != null) {
+                graph.awaitAll();
+            }
+        } catch (IOException|InterruptedException|RuntimeException e) {
+            if (graph != null) {
+                graph.cancel();
+                graph.awaitIdle();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the source of the video frames, copying each frame's asset from a spool of frame assets.
+     * @param timeline The timeline of the video.
+     * @param spool The spool of frame assets.
+     * @param graph The graph still writing the assets, or null if every asset is already written.
+     * @param handle The handle to report streamed frames to. Null if there is none.
+     * @return The source that renders each frame of the video
+     */
+    private static FrameSource spoolFrames(Timeline timeline, FrameSpool spool, EffectGraph graph,
+                                           RenderHandle handle) {
+
+        FrameSource assets = spool.source(asset -> asset);
+
+        return (frame, buffer) -> {
+            int asset = timeline.asset(frame);
+            if (graph != null) {
+                graph.await(asset);
+            }
+            assets.render(asset, buffer);
+
+            if (handle != null) {
+                handle.frameStreamed();
+            }
+        };
+    }
+
+    /**
+     * Method to create the source of every asset frame in memory, the same frames the file based render writes.
+     * Assets below GRAIN_COUNT are grain frames, an asset of GRAIN_COUNT + i is glitch frame i.
+     * @param source The decoded background of the video.
+     * @param grainResource The folder to pull grain resource frames to overlay.
+     * @param seed The seed of the glitch offsets.
+     * @param budget The memory budget each frame is admitted against.
+     * @return The source that renders each asset frame, given the asset's index
+     */
+    private static FrameSource assets(BufferedImage source, File grainResource, long seed, MemoryBudget budget) {
+
+        ArrayList<File> grainResourceFiles = grainFiles(grainResource);
+
+        // Offsets are drawn once, so a glitch frame used more than once looks the same every time
+        int[][] glitchOffsets = new int[GLITCH_COUNT][];
+        for (int i = 0; i < GLITCH_COUNT; i++) {
+            glitchOffsets[i] = GlitchEffect.offsets(i, AMPLIFICATION, GLITCH_COUNT, seed);
+        }
+
+        long pixels = (long) source.getWidth() * source.getHeight();
+        long grainBytes = GrainEffect.footprint(pixels);
+        long glitchBytes = GrainGlitch.footprint(pixels);
+
+        return (asset, buffer) -> {
+            // Glitch frame i is applied to grain frame i, the same as the file based render
+            int grainI = asset < GRAIN_COUNT ? asset : asset - GRAIN_COUNT;
+            int reserved = budget.acquire(asset < GRAIN_COUNT ? grainBytes : glitchBytes);
+
+            try {
+                File grainFile = grainResourceFiles.get(grainI % grainResourceFiles.size());
+
+                try (FramePool.Lease<BufferedImage> image = asset < GRAIN_COUNT
+                        ? FramePool.shared().compatible(source)
+                        : FramePool.shared().image(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB)) {
+
+                    // A glitch frame blends the grain as it offsets, instead of creating the grain frame first
+                    if (asset < GRAIN_COUNT) {
+                        GrainEffect.grainFrame(source, grainFile, OPACITY, image.get());
+                    } else {
+                        GrainGlitch.glitchFrame(source, grainFile, OPACITY, glitchOffsets[asset - GRAIN_COUNT],
+                                image.get());
+                    }
+
+                    RawFrames.put(image.get(), buffer);
+                }
+            } finally {
+                budget.release(reserved);
+            }
+        };
+    }
+
+    /**
+     * Prints the grain cache, encode, memory budget and frame pool statistics of the render.
+     * @param scheduler The scheduler the frames were rendered on.
+     */
+    private static void printRenderStats(RenderScheduler scheduler) {
+        System.out.println(GrainCache.shared());
+        System.out.println(EncodeMetrics.shared());
+        System.out.println(scheduler.budget());
+        System.out.println(FramePool.shared());
+    }
+
+    /**
+     * Lists the grain resource frames, sorted by name. The order of listFiles depends on the file system,
+     * so sorting uses the same grain set in the same order, with the same render cache key, on every machine.
+     * @param grainResource The folder of grain resource frames.
+     * @return The grain resource frames
+     */
+    private static ArrayList<File> grainFiles(File grainResource) {
+        ArrayList<File> files = new ArrayList<>(Arrays.asList(Objects.requireNonNull(grainResource.listFiles())));
+        files.sort(Comparator.comparing(File::getName));
+        return files;
+    }
+
+    /**
+     * Deletes a temporary spool file, if it was created.
+     * @param spoolFile The spool file, or null if it wasn't created.
+     */
+    private static void deleteSpool(File spoolFile) {
+        // A mapped file can't be deleted on some systems until its mapping is garbage collected
+        if (spoolFile != null && !spoolFile.delete() && spoolFile.exists()) {
+            spoolFile.deleteOnExit();
+        }
+    }
+
     /**
      * Method to delete a directory and its contents
      * @param folder The directory to delete
@@ -1,5 +1,7 @@
 package com.h3music.videoeditor;
 
+import com.h3music.videoeditor.glitch.GlitchEffect;
+
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
@@ -10,7 +12,15 @@ import java.util.ArrayList;
 import java.util.Scanner;
 
 public class VideoEditor {
-    private static double getAudioDuration(File file) throws UnsupportedAudioFileException, IOException {
+    /**
+     * The system property to configure the folder of grain resource frames.
+     */
+    public static final String GRAIN_RESOURCE_PROPERTY = "videoeditor.grainResources";
+
+    static final File GRAIN_RESOURCE = new File(System.getProperty(GRAIN_RESOURCE_PROPERTY,
+            ".\\src\\com\\h3music\\videoeditor\\grain\\resources\\"));
+
+    static double getAudioDuration(File file) throws UnsupportedAudioFileException, IOException {
         AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(file);
         AudioFormat format = audioInputStream.getFormat();
         long frames = audioInputStream.getFrameLength();
@@ -19,6 +29,12 @@ public class VideoEditor {
 
     public static void main(String[] args) {
 
+        // A manifest renders a batch of videos, instead of asking for a single video
+        if (args.length > 0) {
+            BatchRender.main(args);
+            return;
+        }
+
         try {
             System.out.println("H3 Music Video Editor");
             System.out.println("Copyright H3 Music Corp 2023, h3music.com\n\n");
@@ -48,15 +64,14 @@ public class VideoEditor {
                 System.exit(1);
             }
 
-            VideoRecord videoRecord = new VideoRecord(frames, sourceFile, audio, outputFile);
-
-            File grainResource = new File(".\\src\\com\\h3music\\videoeditor\\grain\\resources\\");
+            VideoRecord videoRecord = new VideoRecord(frames, sourceFile, audio, outputFile,
+                    GlitchEffect.defaultSeed());
 
-            System.out.println("Processing...");
+            System.out.println("Processing... (Glitch seed " + videoRecord.seed() + ")");
 
             Video.render(getAudioDuration(videoRecord.audio()),
-                    videoRecord.impactFrames(), videoRecord.sourceFile(),
-                    grainResource, videoRecord.audio(), videoRecord.outputFile());
+                    videoRecord.impactFrames(), videoRecord.seed(), videoRecord.sourceFile(),
+                    GRAIN_RESOURCE, videoRecord.audio(), videoRecord.outputFile());
 
         } catch (Exception e) {
             System.out.println("An Error Occurred");
@@ -10,6 +10,7 @@ import java.util.ArrayList;
  * @param sourceFile An image file used as the background of the video.
  * @param audio An audio file to include in the video file. (WAV required)
  * @param outputFile A file to export the video to.
+ * @param seed The seed of the glitch offsets. Rendering the same record again renders the same video.
  */
 public record VideoRecord(ArrayList<Integer> impactFrames,
-                          File sourceFile, File audio, File outputFile) {}
+                          File sourceFile, File audio, File outputFile, long seed) {}
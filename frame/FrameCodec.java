@@ -0,0 +1,122 @@
+package com.h3music.videoeditor.frame;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * This interface provides the image format intermediate frames are written to and read back from.
+ * JPEG is small and lossy, and slow to encode. The lossless QOI codec is several times larger on disk,
+ * but about twice as fast to encode, and never loses quality before the final encode.
+ * Codecs are shared between threads.
+ */
+public interface FrameCodec {
+    /**
+     * The system property to choose the codec of each render: "jpeg", "lossless" or "auto".
+     * Defaults to "auto", which uses the lossless codec unless the output disk is short on space.
+     */
+    String CODEC_PROPERTY = "videoeditor.frameCodec";
+
+    /**
+     * The system property to configure the quality of JPEG frames, from 0 to 1. Defaults to .75, the ImageIO default.
+     */
+    String JPEG_QUALITY_PROPERTY = "videoeditor.jpegQuality";
+
+    /**
+     * The file extension of frames written by the codec.
+     * @return The extension, without a dot
+     */
+    String extension();
+
+    /**
+     * Writes a frame to a file, replacing the file if it exists.
+     * @param image The frame to write.
+     * @param file The file to write to.
+     * @throws IOException If the file can't be written, or the codec can't store the image
+     */
+    void write(BufferedImage image, File file) throws IOException;
+
+    /**
+     * Reads a frame written by the codec.
+     * @param file The file to read.
+     * @return The decoded frame
+     * @throws IOException If the file can't be read or decoded
+     */
+    BufferedImage decode(File file) throws IOException;
+
+    /**
+     * The name of a frame's file.
+     * @param i The iteration of the frame.
+     * @return The file name
+     */
+    default String fileName(int i) {
+        return i + "." + extension();
+    }
+
+    /**
+     * The JPEG codec, at the quality of the JPEG quality property.
+     * @return The JPEG codec
+     */
+    static FrameCodec jpeg() {
+        return JpegCodec.DEFAULT;
+    }
+
+    /**
+     * The JPEG codec at a quality.
+     * @param quality The quality of the frames, from 0 (Smallest) to 1 (Best).
+     * @return The JPEG codec
+     */
+    static FrameCodec jpeg(float quality) {
+        return new JpegCodec(quality);
+    }
+
+    /**
+     * The lossless QOI codec.
+     * @return The lossless codec
+     */
+    static FrameCodec lossless() {
+        return QoiCodec.INSTANCE;
+    }
+
+    /**
+     * Chooses the codec of a render. The lossless codec is used when the disk has room for the frames,
+     * since encoding JPEG frames is usually the slower step, and JPEG when the disk space is the limit.
+     * The codec property overrides the choice.
+     * @param folder The folder the frames are written to.
+     * @param pixels The number of pixels of each frame. (width * height)
+     * @param frameCount The number of frames written.
+     * @return The codec
+     */
+    static FrameCodec forRender(File folder, long pixels, int frameCount) {
+        return switch (System.getProperty(CODEC_PROPERTY, "auto").toLowerCase(Locale.ROOT)) {
+            case "jpeg", "jpg" -> jpeg();
+            case "lossless", "qoi" -> lossless();
+            default -> {
+                // Grain is noise, so lossless frames are assumed to be as large as raw frames
+                long losslessBytes = pixels * RawFrames.BYTES_PER_PIXEL * frameCount;
+                yield folder.getUsableSpace() > losslessBytes * 2 ? lossless() : jpeg();
+            }
+        };
+    }
+
+    /**
+     * Reads a frame with the codec of its file extension, or any format ImageIO supports.
+     * @param file The file to read.
+     * @return The decoded frame
+     * @throws IOException If the file can't be read or decoded
+     */
+    static BufferedImage read(File file) throws IOException {
+        if (file.getName().toLowerCase(Locale.ROOT).endsWith("." + QoiCodec.INSTANCE.extension())) {
+            return QoiCodec.INSTANCE.decode(file);
+        }
+
+        BufferedImage image = ImageIO.read(file);
+
+        if (image == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,230 @@
+package com.h3music.videoeditor.frame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class pools frame sized images and raw frame buffers, so each frame reuses the memory of earlier frames
+ * instead of allocating its own. Images are keyed by their size and image type, raw frame buffers by their size.
+ * Buffers are leased with try-with-resources, and return to the pool once the lease is closed.
+ * A leased buffer still holds the pixels of its last use, callers overwrite every pixel.
+ */
+public final class FramePool {
+    /**
+     * The system property to configure the byte budget of idle buffers in the shared pool.
+     * Defaults to an eighth of the max heap size. Leased buffers don't count against the budget.
+     */
+    public static final String BUDGET_PROPERTY = "videoeditor.framePoolBytes";
+
+    /**
+     * The system property to configure where raw frame buffers are allocated.
+     * Defaults to true, off-heap (direct) memory, which is written to the encoder without a copy.
+     * Images are always on-heap, Java2D only draws array backed images.
+     */
+    public static final String OFF_HEAP_PROPERTY = "videoeditor.offHeapFrames";
+
+    private static final FramePool SHARED = new FramePool(
+            Long.getLong(BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 8),
+            Boolean.parseBoolean(System.getProperty(OFF_HEAP_PROPERTY, "true")));
+
+    private final Map<ImageKey, ConcurrentLinkedDeque<BufferedImage>> images = new ConcurrentHashMap<>();
+    private final Map<Integer, ConcurrentLinkedDeque<ByteBuffer>> buffers = new ConcurrentHashMap<>();
+
+    private final long budgetBytes;
+    private final boolean offHeap;
+
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * Creates a pool with its own byte budget. Most callers should use the shared pool.
+     * @param budgetBytes The max amount of memory, in bytes, held by idle buffers.
+     * @param offHeap Whether raw frame buffers are allocated off-heap.
+     */
+    public FramePool(long budgetBytes, boolean offHeap) {
+        this.budgetBytes = budgetBytes;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Returns the process-wide pool used by the effects and the exporter.
+     * @return The shared pool
+     */
+    public static FramePool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Leases an image.
+     * @param width The width (X) of the image in pixels.
+     * @param height The height (Y) of the image in pixels.
+     * @param imageType The type of the image, Ex. BufferedImage.TYPE_INT_RGB. Must not be TYPE_CUSTOM.
+     * @return The lease of the image
+     */
+    public Lease<BufferedImage> image(int width, int height, int imageType) {
+        ImageKey key = new ImageKey(width, height, imageType);
+        ConcurrentLinkedDeque<BufferedImage> idle = images.computeIfAbsent(key, k -> new ConcurrentLinkedDeque<>());
+
+        BufferedImage image = take(idle, FramePool::byteSize);
+        if (image == null) {
+            image = new BufferedImage(width, height, imageType);
+        }
+        return new Lease<>(image, leased -> offer(idle, leased, byteSize(leased)));
+    }
+
+    /**
+     * Leases an image with the same size and pixel layout as another image.
+     * Images of a custom or indexed layout can't be recreated from their type, and aren't pooled.
+     * @param like The image to match.
+     * @return The lease of the image
+     */
+    public Lease<BufferedImage> compatible(BufferedImage like) {
+        return switch (like.getType()) {
+            case BufferedImage.TYPE_CUSTOM, BufferedImage.TYPE_BYTE_BINARY, BufferedImage.TYPE_BYTE_INDEXED -> {
+                leases.incrementAndGet();
+                yield new Lease<>(new BufferedImage(like.getColorModel(),
+                        like.getRaster().createCompatibleWritableRaster(), like.isAlphaPremultiplied(), null), null);
+            }
+            default -> image(like.getWidth(), like.getHeight(), like.getType());
+        };
+    }
+
+    /**
+     * Leases a raw frame buffer, ready to be filled from position 0.
+     * @param capacity The size of the buffer in bytes. (RawFrames.size)
+     * @return The lease of the buffer
+     */
+    public Lease<ByteBuffer> buffer(int capacity) {
+        ConcurrentLinkedDeque<ByteBuffer> idle = buffers.computeIfAbsent(capacity, k -> new ConcurrentLinkedDeque<>());
+
+        ByteBuffer buffer = take(idle, ByteBuffer::capacity);
+        if (buffer == null) {
+            buffer = offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+
+        return new Lease<>(buffer, leased -> offer(idle, leased, leased.capacity()));
+    }
+
+    /**
+     * Removes every idle buffer from the pool.
+     */
+    public void clear() {
+        images.values().forEach(idle -> drain(idle, FramePool::byteSize));
+        buffers.values().forEach(idle -> drain(idle, ByteBuffer::capacity));
+    }
+
+    public long budgetBytes() {
+        return budgetBytes;
+    }
+
+    public long idleBytes() {
+        return idleBytes.get();
+    }
+
+    public long leases() {
+        return leases.get();
+    }
+
+    /**
+     * The number of leases that reused an idle buffer, instead of allocating a new one.
+     * @return The number of reused buffers
+     */
+    public long reused() {
+        return reused.get();
+    }
+
+    /**
+     * Summarizes the pool.
+     * @return A line with the leases, reuse and idle memory of the pool
+     */
+    @Override
+    public String toString() {
+        return String.format("Frame pool: %d leases, %d reused, %d / %d MB idle",
+                leases(), reused(), idleBytes() >> 20, budgetBytes >> 20);
+    }
+
+    private <T> T take(ConcurrentLinkedDeque<T> idle, ToLongFunction<T> size) {
+        leases.incrementAndGet();
+
+        T value = idle.pollFirst();
+        if (value != null) {
+            idleBytes.addAndGet(-size.applyAsLong(value));
+            reused.incrementAndGet();
+        }
+        return value;
+    }
+
+    private <T> void offer(ConcurrentLinkedDeque<T> idle, T value, long bytes) {
+        // Over budget buffers are left to the garbage collector
+        if (idleBytes.addAndGet(bytes) > budgetBytes) {
+            idleBytes.addAndGet(-bytes);
+            return;
+        }
+        idle.addFirst(value);
+    }
+
+    private <T> void drain(ConcurrentLinkedDeque<T> idle, ToLongFunction<T> size) {
+        for (T value = idle.pollFirst(); value != null; value = idle.pollFirst()) {
+            idleBytes.addAndGet(-size.applyAsLong(value));
+        }
+    }
+
+    /**
+     * Finds the amount of memory used by the pixel data of an image.
+     * @param image The image to measure.
+     * @return The size of the pixel data in bytes
+     */
+    private static long byteSize(BufferedImage image) {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    /**
+     * A leased image or raw frame buffer. Closing the lease returns the buffer to the pool,
+     * after which it must not be used.
+     * @param <T> The type of the buffer.
+     */
+    public static final class Lease<T> implements AutoCloseable {
+        private final T value;
+        private final Consumer<T> release;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(T value, Consumer<T> release) {
+            this.value = value;
+            this.release = release;
+        }
+
+        public T get() {
+            return value;
+        }
+
+        /**
+         * Returns the buffer to the pool. Closing a lease more than once has no effect.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true) && release != null) {
+                release.accept(value);
+            }
+        }
+    }
+
+    /**
+     * Pool key of an image.
+     * @param width The width (X) of the image.
+     * @param height The height (Y) of the image.
+     * @param imageType The type of the image.
+     */
+    private record ImageKey(int width, int height, int imageType) {}
+}
@@ -0,0 +1,20 @@
+package com.h3music.videoeditor.frame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of raw video frames, rendered on request in any order and from any thread.
+ * Frames are indexed by the caller, Ex. by frame of the video, or by asset frame when encoding segments.
+ */
+@FunctionalInterface
+public interface FrameSource {
+    /**
+     * Renders one frame of the video as raw pixels.
+     * @param frame The index of the frame to render.
+     * @param buffer The buffer to write the frame's pixels to, in the RawFrames pixel format.
+     *               The buffer is cleared, and must be left with its position at the end of the frame.
+     * @throws IOException If the frame's assets can't be read
+     */
+    void render(int frame, ByteBuffer buffer) throws IOException;
+}
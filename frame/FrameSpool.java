@@ -0,0 +1,220 @@
+package com.h3music.videoeditor.frame;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * This class stores intermediate frames as raw frames in one memory-mapped file, instead of a folder of JPEG files.
+ * Frames are stored uncompressed, so they are never re-encoded or lose quality before the final encode,
+ * and each frame is read straight from the mapped file, without a copy or a decode.
+ * The file starts with a small header: the size and number of frames, and which frames have been written.
+ * Frames are stored after the header at a fixed stride, in the raw format FFMPEG reads as "rawvideo".
+ * Different frames can be written and read by different threads at once.
+ */
+public final class FrameSpool implements AutoCloseable {
+    private static final int MAGIC = 0x56535031;
+    private static final int HEADER_FIELDS_BYTES = Integer.BYTES * 4;
+
+    /**
+     * Frames start at a page boundary, after the header.
+     */
+    private static final int PAGE_BYTES = 4096;
+
+    private final File file;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int frameCount;
+    private final int frameSize;
+    private final int framesPerRegion;
+
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] regions;
+
+    private FrameSpool(File file, FileChannel channel, int width, int height, int frameCount) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.frameCount = frameCount;
+        this.frameSize = RawFrames.size(width, height);
+
+        long dataOffset = dataOffset(frameCount);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset);
+
+        // A single mapping is limited to 2 GB, so frames are mapped in regions of whole frames
+        this.framesPerRegion = Math.max(1, Integer.MAX_VALUE / frameSize);
+        this.regions = new MappedByteBuffer[(frameCount + framesPerRegion - 1) / framesPerRegion];
+
+        for (int i = 0; i < regions.length; i++) {
+            int frames = Math.min(framesPerRegion, frameCount - i * framesPerRegion);
+            regions[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    dataOffset + (long) i * framesPerRegion * frameSize, (long) frames * frameSize);
+        }
+    }
+
+    /**
+     * Creates a spool file, replacing the file if it exists. No frames are written yet.
+     * @param file The file to store the frames in.
+     * @param width The width (X) of the frames in pixels.
+     * @param height The height (Y) of the frames in pixels.
+     * @param frameCount The number of frames in the spool.
+     * @return The spool
+     * @throws IOException If the file can't be created or mapped
+     */
+    public static FrameSpool create(File file, int width, int height, int frameCount) throws IOException {
+        long length = dataOffset(frameCount) + (long) frameCount * RawFrames.size(width, height);
+
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            channel.write(ByteBuffer.allocate(1), length - 1);
+
+            FrameSpool spool = new FrameSpool(file, channel, width, height, frameCount);
+            spool.header.putInt(0, MAGIC)
+                    .putInt(Integer.BYTES, width)
+                    .putInt(Integer.BYTES * 2, height)
+                    .putInt(Integer.BYTES * 3, frameCount);
+            return spool;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing spool file, keeping the frames already written.
+     * @param file The spool file.
+     * @return The spool
+     * @throws IOException If the file can't be read, or isn't a spool file
+     */
+    public static FrameSpool open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            ByteBuffer fields = ByteBuffer.allocate(HEADER_FIELDS_BYTES);
+            while (fields.hasRemaining()) {
+                if (channel.read(fields) < 0) {
+                    break;
+                }
+            }
+            fields.flip();
+
+            if (fields.remaining() < HEADER_FIELDS_BYTES || fields.getInt() != MAGIC) {
+                throw new IOException("Not a frame spool: " + file);
+            }
+
+            int width = fields.getInt();
+            int height = fields.getInt();
+            int frameCount = fields.getInt();
+
+            if (channel.size() < dataOffset(frameCount) + (long) frameCount * RawFrames.size(width, height)) {
+                throw new IOException("Frame spool is truncated: " + file);
+            }
+            return new FrameSpool(file, channel, width, height, frameCount);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int frameCount() {
+        return frameCount;
+    }
+
+    public int frameSize() {
+        return frameSize;
+    }
+
+    /**
+     * The raw frame, read or written in place in the mapped file.
+     * @param frame The index of the frame.
+     * @return A buffer of the frame's frameSize bytes, positioned at the start of the frame
+     */
+    public ByteBuffer frame(int frame) {
+        if (frame < 0 || frame >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " of " + frameCount);
+        }
+        return regions[frame / framesPerRegion].slice((frame % framesPerRegion) * frameSize, frameSize);
+    }
+
+    /**
+     * Writes an image to the spool as a raw frame, and marks the frame as written.
+     * @param frame The index of the frame.
+     * @param image The image to write, the same size as the spool's frames.
+     */
+    public void put(int frame, BufferedImage image) {
+        if (image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException("Image is " + image.getWidth() + "x" + image.getHeight()
+                    + ", expected " + width + "x" + height);
+        }
+
+        RawFrames.put(image, frame(frame));
+        header.put(HEADER_FIELDS_BYTES + frame, (byte) 1);
+    }
+
+    /**
+     * Whether a frame has been written, Ex. by an earlier render that stored its frames in the same spool file.
+     * @param frame The index of the frame.
+     * @return True if the frame was written
+     */
+    public boolean written(int frame) {
+        return header.get(HEADER_FIELDS_BYTES + frame) != 0;
+    }
+
+    /**
+     * The source that copies frames out of the spool, Ex. to stream them to FFMPEG.
+     * @param frameIndex Finds the spool frame of each frame of the source.
+     * @return The frame source
+     */
+    public FrameSource source(IntUnaryOperator frameIndex) {
+        return (frame, buffer) -> buffer.put(frame(frameIndex.applyAsInt(frame)));
+    }
+
+    /**
+     * Writes every frame to the file. Frames are written by the operating system over time anyway,
+     * this is only needed before another process reads the file.
+     */
+    public void force() {
+        header.force();
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    /**
+     * Closes the file. Buffers from frame must not be used afterwards.
+     * @throws IOException If the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Finds where frames start in the file: after the header fields and a written flag for each frame.
+     * @param frameCount The number of frames in the spool.
+     * @return The offset of the first frame in bytes
+     */
+    private static long dataOffset(int frameCount) {
+        long headerBytes = HEADER_FIELDS_BYTES + (long) frameCount;
+        return (headerBytes + PAGE_BYTES - 1) / PAGE_BYTES * PAGE_BYTES;
+    }
+}
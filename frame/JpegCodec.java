@@ -0,0 +1,64 @@
+package com.h3music.videoeditor.frame;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * This class writes frames as JPEG files, reusing one ImageWriter on each thread instead of creating one per frame.
+ */
+final class JpegCodec implements FrameCodec {
+    static final JpegCodec DEFAULT = new JpegCodec(
+            Float.parseFloat(System.getProperty(JPEG_QUALITY_PROPERTY, "0.75")));
+
+    private static final ThreadLocal<ImageWriter> WRITERS = ThreadLocal.withInitial(
+            () -> ImageIO.getImageWritersByFormatName("jpeg").next());
+
+    private final float quality;
+
+    JpegCodec(float quality) {
+        this.quality = Math.min(1, Math.max(0, quality));
+    }
+
+    @Override
+    public String extension() {
+        return "jpg";
+    }
+
+    @Override
+    public void write(BufferedImage image, File file) throws IOException {
+        ImageWriter writer = WRITERS.get();
+
+        if (!writer.getOriginatingProvider().canEncodeImage(ImageTypeSpecifier.createFromRenderedImage(image))) {
+            throw new IOException("JPEG can't store an image of type " + image.getType() + ": " + file);
+        }
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(file.toPath()));
+             ImageOutputStream output = new MemoryCacheImageOutputStream(stream)) {
+
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+        }
+    }
+
+    @Override
+    public BufferedImage decode(File file) throws IOException {
+        return FrameCodec.read(file);
+    }
+}
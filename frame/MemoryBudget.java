@@ -0,0 +1,180 @@
+package com.h3music.videoeditor.frame;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class limits the heap memory held by frames being rendered at the same time.
+ * Each frame task declares its estimated footprint, and only starts once the budget has room for it,
+ * so any resolution renders with as many frames at once as safely fit, instead of a hand tuned thread count.
+ */
+public final class MemoryBudget {
+    /**
+     * The system property to configure the byte budget of the shared budget.
+     * Defaults to half of the max heap size, the grain cache has its own budget.
+     */
+    public static final String BUDGET_PROPERTY = "videoeditor.renderMemoryBytes";
+
+    /**
+     * The budget is counted in blocks of this many bytes, so large budgets fit in the semaphore's permits.
+     */
+    private static final int BLOCK_BYTES = 1024;
+
+    private static final MemoryBudget SHARED = new MemoryBudget(
+            Long.getLong(BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 2));
+
+    private final Semaphore blocks;
+    private final int totalBlocks;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong inUseBlocks = new AtomicLong();
+    private final AtomicLong peakBlocks = new AtomicLong();
+
+    /**
+     * Creates a budget. Most callers should use the shared budget.
+     * @param budgetBytes The max amount of memory, in bytes, held by frames being rendered.
+     */
+    public MemoryBudget(long budgetBytes) {
+        this.totalBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / BLOCK_BYTES));
+        this.blocks = new Semaphore(totalBlocks, true);
+    }
+
+    /**
+     * Returns the process-wide budget used by the shared RenderScheduler.
+     * @return The shared budget
+     */
+    public static MemoryBudget shared() {
+        return SHARED;
+    }
+
+    /**
+     * Waits until the budget has room for a frame task, and reserves its footprint.
+     * A footprint larger than the whole budget reserves the whole budget, so the task still runs, alone.
+     * @param bytes The estimated footprint of the task in bytes.
+     * @return The reserved amount, to pass to release once the task is complete
+     */
+    public int acquire(long bytes) {
+        int count = blocks(bytes);
+
+        if (!blocks.tryAcquire(count)) {
+            waits.incrementAndGet();
+            blocks.acquireUninterruptibly(count);
+        }
+        return admitted(count);
+    }
+
+    /**
+     * Waits until the budget has room for a frame task, and reserves its footprint, the same as acquire,
+     * unless the thread is interrupted while waiting. Used by tasks that can be cancelled while they wait.
+     * @param bytes The estimated footprint of the task in bytes.
+     * @return The reserved amount, to pass to release once the task is complete
+     * @throws InterruptedException If the thread was interrupted while waiting, nothing is reserved
+     */
+    public int acquireInterruptibly(long bytes) throws InterruptedException {
+        int count = blocks(bytes);
+
+        if (!blocks.tryAcquire(count)) {
+            waits.incrementAndGet();
+            blocks.acquire(count);
+        }
+        return admitted(count);
+    }
+
+    /**
+     * Releases the footprint of a complete frame task.
+     * @param reserved The amount returned by acquire.
+     */
+    public void release(int reserved) {
+        inUseBlocks.addAndGet(-reserved);
+        blocks.release(reserved);
+    }
+
+    public long budgetBytes() {
+        return (long) totalBlocks * BLOCK_BYTES;
+    }
+
+    public long inUseBytes() {
+        return inUseBlocks.get() * BLOCK_BYTES;
+    }
+
+    public long peakBytes() {
+        return peakBlocks.get() * BLOCK_BYTES;
+    }
+
+    /**
+     * The number of tasks that had to wait for room in the budget.
+     * @return The number of waits
+     */
+    public long waits() {
+        return waits.get();
+    }
+
+    /**
+     * Summarizes the budget.
+     * @return A line with the admitted tasks, waits and memory use of the budget
+     */
+    @Override
+    public String toString() {
+        return String.format("Render memory: %d tasks, %d waited, %d MB peak / %d MB",
+                admitted.get(), waits(), peakBytes() >> 20, budgetBytes() >> 20);
+    }
+
+    /**
+     * Estimates the footprint of full size images.
+     * @param pixels The number of pixels of each image. (width * height)
+     * @param images The number of images held at once.
+     * @return The estimated footprint in bytes, counting 32 bit pixels
+     */
+    public static long imageBytes(long pixels, int images) {
+        return pixels * Integer.BYTES * images;
+    }
+
+    /**
+     * Reads the size of an image file without decoding its pixels.
+     * @param file An image file.
+     * @return The number of pixels of the image, 0 if the size can't be read
+     */
+    public static long pixels(File file) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                return 0;
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return 0;
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private int admitted(int count) {
+        admitted.incrementAndGet();
+
+        long inUse = inUseBlocks.addAndGet(count);
+        peakBlocks.accumulateAndGet(inUse, Math::max);
+
+        return count;
+    }
+
+    private int blocks(long bytes) {
+        long count = (bytes + BLOCK_BYTES - 1) / BLOCK_BYTES;
+        return (int) Math.max(1, Math.min(totalBlocks, count));
+    }
+}
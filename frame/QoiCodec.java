@@ -0,0 +1,248 @@
+package com.h3music.videoeditor.frame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * This class writes frames losslessly in the QOI format ("Quite OK Image", https://qoiformat.org).
+ * Each pixel is stored as a run of the previous pixel, a pixel seen recently, a small difference from the previous
+ * pixel, or the full pixel, in a single pass with no entropy coding.
+ * Frames without alpha are stored with 3 channels, and decoded as TYPE_INT_RGB. Otherwise as TYPE_INT_ARGB.
+ */
+final class QoiCodec implements FrameCodec {
+    static final QoiCodec INSTANCE = new QoiCodec();
+
+    private static final int MAGIC = 0x716F6966;
+    private static final int HEADER_BYTES = 14;
+    private static final byte[] END_MARKER = {0, 0, 0, 0, 0, 0, 0, 1};
+
+    private static final int OP_INDEX = 0x00;
+    private static final int OP_DIFF = 0x40;
+    private static final int OP_LUMA = 0x80;
+    private static final int OP_RUN = 0xC0;
+    private static final int OP_RGB = 0xFE;
+    private static final int OP_RGBA = 0xFF;
+    private static final int OP_MASK = 0xC0;
+
+    /**
+     * Encoded bytes are written in blocks of this size. Fits the largest encoded pixel many times over.
+     */
+    private static final int BLOCK_BYTES = 1 << 16;
+
+    private QoiCodec() {}
+
+    @Override
+    public String extension() {
+        return "qoi";
+    }
+
+    @Override
+    public void write(BufferedImage image, File file) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+
+        // Opaque images are stored without alpha, so every pixel's alpha is the same
+        int opaque = alpha ? 0 : 0xFF000000;
+
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BLOCK_BYTES)) {
+            byte[] block = new byte[BLOCK_BYTES];
+            int pos = 0;
+
+            block[pos++] = (byte) (MAGIC >>> 24);
+            block[pos++] = (byte) (MAGIC >>> 16);
+            block[pos++] = (byte) (MAGIC >>> 8);
+            block[pos++] = (byte) MAGIC;
+            pos = putInt(block, pos, width);
+            pos = putInt(block, pos, height);
+            block[pos++] = (byte) (alpha ? 4 : 3);
+            block[pos++] = 0;
+
+            int[] index = new int[64];
+            int[] row = new int[width];
+            int previous = 0xFF000000;
+            int run = 0;
+
+            for (int y = 0; y < height; y++) {
+                Scanlines.read(image, y, row);
+
+                for (int x = 0; x < width; x++) {
+                    int pixel = row[x] | opaque;
+
+                    if (pos > BLOCK_BYTES - 8) {
+                        output.write(block, 0, pos);
+                        pos = 0;
+                    }
+
+                    if (pixel == previous) {
+                        run++;
+                        if (run == 62) {
+                            block[pos++] = (byte) (OP_RUN | (run - 1));
+                            run = 0;
+                        }
+                        continue;
+                    }
+
+                    if (run > 0) {
+                        block[pos++] = (byte) (OP_RUN | (run - 1));
+                        run = 0;
+                    }
+
+                    int hash = hash(pixel);
+
+                    if (index[hash] == pixel) {
+                        block[pos++] = (byte) (OP_INDEX | hash);
+                    } else {
+                        index[hash] = pixel;
+
+                        if ((pixel >>> 24) == (previous >>> 24)) {
+                            int dr = (byte) ((pixel >> 16) - (previous >> 16));
+                            int dg = (byte) ((pixel >> 8) - (previous >> 8));
+                            int db = (byte) (pixel - previous);
+                            int dgr = dr - dg;
+                            int dgb = db - dg;
+
+                            if (dr > -3 && dr < 2 && dg > -3 && dg < 2 && db > -3 && db < 2) {
+                                block[pos++] = (byte) (OP_DIFF | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                            } else if (dgr > -9 && dgr < 8 && dg > -33 && dg < 32 && dgb > -9 && dgb < 8) {
+                                block[pos++] = (byte) (OP_LUMA | (dg + 32));
+                                block[pos++] = (byte) ((dgr + 8) << 4 | (dgb + 8));
+                            } else {
+                                block[pos++] = (byte) OP_RGB;
+                                block[pos++] = (byte) (pixel >> 16);
+                                block[pos++] = (byte) (pixel >> 8);
+                                block[pos++] = (byte) pixel;
+                            }
+                        } else {
+                            block[pos++] = (byte) OP_RGBA;
+                            block[pos++] = (byte) (pixel >> 16);
+                            block[pos++] = (byte) (pixel >> 8);
+                            block[pos++] = (byte) pixel;
+                            block[pos++] = (byte) (pixel >>> 24);
+                        }
+                    }
+                    previous = pixel;
+                }
+            }
+
+            if (run > 0) {
+                block[pos++] = (byte) (OP_RUN | (run - 1));
+            }
+
+            output.write(block, 0, pos);
+            output.write(END_MARKER);
+        }
+    }
+
+    @Override
+    public BufferedImage decode(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        if (data.length < HEADER_BYTES + END_MARKER.length || getInt(data, 0) != MAGIC) {
+            throw new IOException("Not a QOI image: " + file);
+        }
+
+        int end = data.length - END_MARKER.length;
+
+        // A file cut off while it was written is missing its end marker
+        if (!Arrays.equals(data, end, data.length, END_MARKER, 0, END_MARKER.length)) {
+            throw new IOException("QOI image is truncated: " + file);
+        }
+
+        int width = getInt(data, 4);
+        int height = getInt(data, 8);
+        boolean alpha = data[12] == 4;
+
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IOException("Unsupported QOI image size " + width + "x" + height + ": " + file);
+        }
+
+        BufferedImage image = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        int[] index = new int[64];
+        int pixel = 0xFF000000;
+        int run = 0;
+        int pos = HEADER_BYTES;
+
+        for (int i = 0; i < pixels.length; i++) {
+            if (run > 0) {
+                run--;
+            } else {
+                if (pos >= end) {
+                    throw new IOException("QOI image ends after " + i + " of " + pixels.length + " pixels: " + file);
+                }
+
+                int op = data[pos++] & 0xFF;
+                int opBytes = op == OP_RGB ? 3 : op == OP_RGBA ? 4 : (op & OP_MASK) == OP_LUMA ? 1 : 0;
+
+                if (pos + opBytes > end) {
+                    throw new IOException("QOI image ends inside a pixel: " + file);
+                }
+
+                if (op == OP_RGB) {
+                    pixel = (pixel & 0xFF000000) | (data[pos] & 0xFF) << 16 | (data[pos + 1] & 0xFF) << 8
+                            | (data[pos + 2] & 0xFF);
+                    pos += 3;
+                } else if (op == OP_RGBA) {
+                    pixel = (data[pos + 3] & 0xFF) << 24 | (data[pos] & 0xFF) << 16 | (data[pos + 1] & 0xFF) << 8
+                            | (data[pos + 2] & 0xFF);
+                    pos += 4;
+                } else if ((op & OP_MASK) == OP_INDEX) {
+                    pixel = index[op];
+                } else if ((op & OP_MASK) == OP_DIFF) {
+                    pixel = add(pixel, ((op >> 4) & 3) - 2, ((op >> 2) & 3) - 2, (op & 3) - 2);
+                } else if ((op & OP_MASK) == OP_LUMA) {
+                    int next = data[pos++] & 0xFF;
+                    int dg = (op & 0x3F) - 32;
+                    pixel = add(pixel, dg - 8 + ((next >> 4) & 0xF), dg, dg - 8 + (next & 0xF));
+                } else {
+                    run = op & 0x3F;
+                }
+                index[hash(pixel)] = pixel;
+            }
+            pixels[i] = pixel;
+        }
+        return image;
+    }
+
+    /**
+     * Adds differences to the channels of a pixel, wrapping around within 8 bits.
+     * @param pixel The 32 bit ARGB pixel.
+     * @param dr The difference of the red channel.
+     * @param dg The difference of the green channel.
+     * @param db The difference of the blue channel.
+     * @return The 32 bit ARGB pixel
+     */
+    private static int add(int pixel, int dr, int dg, int db) {
+        return (pixel & 0xFF000000)
+                | (((pixel >> 16) + dr) & 0xFF) << 16
+                | (((pixel >> 8) + dg) & 0xFF) << 8
+                | ((pixel + db) & 0xFF);
+    }
+
+    private static int hash(int pixel) {
+        return (((pixel >> 16) & 0xFF) * 3 + ((pixel >> 8) & 0xFF) * 5 + (pixel & 0xFF) * 7
+                + (pixel >>> 24) * 11) % 64;
+    }
+
+    private static int putInt(byte[] block, int pos, int value) {
+        block[pos] = (byte) (value >>> 24);
+        block[pos + 1] = (byte) (value >>> 16);
+        block[pos + 2] = (byte) (value >>> 8);
+        block[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16 | (data[pos + 2] & 0xFF) << 8
+                | (data[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,113 @@
+package com.h3music.videoeditor.frame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class converts images to and from raw video frames, the format FFMPEG reads as "rawvideo".
+ * Frames are stored as rows of 24 bit pixels (Blue, Green, Red), with no padding between rows.
+ */
+public final class RawFrames {
+    /**
+     * The FFMPEG name of the pixel format.
+     */
+    public static final String PIXEL_FORMAT = "bgr24";
+
+    public static final int BYTES_PER_PIXEL = 3;
+
+    private RawFrames() {}
+
+    /**
+     * Finds the size of a raw frame.
+     * @param width The width (X) of the frame in pixels.
+     * @param height The height (Y) of the frame in pixels.
+     * @return The size of the frame in bytes
+     */
+    public static int size(int width, int height) {
+        return Math.multiplyExact(Math.multiplyExact(width, height), BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Writes an image to a buffer as a raw frame, starting at the buffer's position.
+     * @param image The image to write.
+     * @param buffer The buffer to write to, with at least size(width, height) bytes remaining.
+     */
+    public static void put(BufferedImage image, ByteBuffer buffer) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if (isRawLayout(image)) {
+            // A TYPE_3BYTE_BGR image with no padding is already stored as a raw frame
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            buffer.put(data, 0, size(width, height));
+            return;
+        }
+
+        int[] row = new int[width];
+        byte[] rawRow = new byte[width * BYTES_PER_PIXEL];
+
+        for (int y = 0; y < height; y++) {
+            Scanlines.read(image, y, row);
+
+            for (int x = 0, i = 0; x < width; x++) {
+                int pixel = row[x];
+                rawRow[i++] = (byte) pixel;
+                rawRow[i++] = (byte) (pixel >> 8);
+                rawRow[i++] = (byte) (pixel >> 16);
+            }
+            buffer.put(rawRow);
+        }
+    }
+
+    /**
+     * Reads a raw frame from a buffer into an image, starting at the buffer's position.
+     * @param buffer The buffer to read from, with at least size(width, height) bytes remaining.
+     * @param image The image to read into. Its size is the size of the frame.
+     */
+    public static void get(ByteBuffer buffer, BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+
+        if (isRawLayout(image)) {
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            buffer.get(data, 0, size(width, height));
+            return;
+        }
+
+        int[] row = new int[width];
+        byte[] rawRow = new byte[width * BYTES_PER_PIXEL];
+
+        for (int y = 0; y < height; y++) {
+            buffer.get(rawRow);
+
+            for (int x = 0, i = 0; x < width; x++, i += BYTES_PER_PIXEL) {
+                row[x] = 0xFF000000
+                        | (rawRow[i + 2] & 0xFF) << 16
+                        | (rawRow[i + 1] & 0xFF) << 8
+                        | (rawRow[i] & 0xFF);
+            }
+            Scanlines.write(image, y, row);
+        }
+    }
+
+    /**
+     * Checks if an image's backing array is laid out exactly like a raw frame.
+     * @param image The image to check.
+     * @return true if the image's backing array can be copied as is
+     */
+    private static boolean isRawLayout(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_3BYTE_BGR
+                || image.getRaster().getParent() != null
+                || image.getRaster().getDataBuffer().getOffset() != 0) {
+            return false;
+        }
+
+        ComponentSampleModel sampleModel = (ComponentSampleModel) image.getRaster().getSampleModel();
+
+        return sampleModel.getScanlineStride() == image.getWidth() * BYTES_PER_PIXEL
+                && Arrays.equals(sampleModel.getBandOffsets(), new int[]{2, 1, 0});
+    }
+}
@@ -0,0 +1,217 @@
+package com.h3music.videoeditor.frame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * This class provides the long-lived, work-stealing thread pool that renders frames.
+ * One pool is shared by every stage and every render, instead of each stage starting and stopping its own threads.
+ * A scheduler can cap how many frames it processes at once, while still sharing the pool's threads.
+ */
+public final class RenderScheduler {
+    /**
+     * The system property to configure the number of threads of the shared pool.
+     * Defaults to the number of available processors.
+     */
+    public static final String THREADS_PROPERTY = "videoeditor.renderThreads";
+
+    private static final RenderScheduler SHARED = new RenderScheduler(
+            Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()), MemoryBudget.shared());
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final MemoryBudget budget;
+
+    /**
+     * Creates a scheduler with its own pool. Most callers should use the shared scheduler.
+     * @param threads The number of threads of the pool.
+     * @param budget The memory budget frame tasks are admitted against.
+     */
+    public RenderScheduler(int threads, MemoryBudget budget) {
+        this(new ForkJoinPool(Math.max(1, threads), RenderScheduler::newThread, null, false),
+                Math.max(1, threads), budget);
+    }
+
+    private RenderScheduler(ForkJoinPool pool, int parallelism, MemoryBudget budget) {
+        this.pool = pool;
+        this.parallelism = parallelism;
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the process-wide scheduler.
+     * @return The shared scheduler
+     */
+    public static RenderScheduler shared() {
+        return SHARED;
+    }
+
+    /**
+     * Creates a scheduler sharing this scheduler's pool, that processes at most a number of frames at once.
+     * Used to lower memory use, Ex. when heap memory errors are occurring.
+     * @param maxParallelism The max number of frames processed at once.
+     * @return The capped scheduler
+     */
+    public RenderScheduler withParallelism(int maxParallelism) {
+        return new RenderScheduler(pool, Math.max(1, Math.min(maxParallelism, pool.getParallelism())), budget);
+    }
+
+    /**
+     * The executor of the pool, to run frame tasks and image stripes on.
+     * @return The executor
+     */
+    public Executor executor() {
+        return pool;
+    }
+
+    /**
+     * Creates an executor that runs tasks on the pool, at most parallelism tasks at once, queuing the rest in order.
+     * Used for frame tasks that aren't run by forEach, Ex. the tasks of an effect graph.
+     * Each executor counts its own tasks, so each caller should create its own.
+     * @return The bounded executor
+     */
+    public Executor boundedExecutor() {
+        return new BoundedExecutor(pool, parallelism);
+    }
+
+    /**
+     * The max number of frames processed at once.
+     * @return The parallelism of the scheduler
+     */
+    public int parallelism() {
+        return parallelism;
+    }
+
+    /**
+     * The memory budget frame tasks are admitted against.
+     * @return The memory budget
+     */
+    public MemoryBudget budget() {
+        return budget;
+    }
+
+    /**
+     * Runs a task for every frame, at most parallelism frames at once, and waits for all of them to complete.
+     * Each frame only starts once the memory budget has room for its footprint, so large frames run fewer at once.
+     * Idle threads steal the remaining frames, and a caller on the pool helps process frames while it waits.
+     * @param length The number of frames.
+     * @param frameBytes The estimated memory held by one frame task, in bytes.
+     * @param frameTask The task run for each frame, given the frame's iteration.
+     */
+    public void forEach(int length, long frameBytes, IntConsumer frameTask) {
+        AtomicInteger next = new AtomicInteger();
+        int lanes = Math.min(parallelism, length);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(lanes);
+
+        for (int lane = 0; lane < lanes; lane++) {
+            tasks.add(ForkJoinTask.adapt(() -> {
+                for (int i = next.getAndIncrement(); i < length; i = next.getAndIncrement()) {
+                    int reserved = budget.acquire(frameBytes);
+                    try {
+                        frameTask.accept(i);
+                    } finally {
+                        budget.release(reserved);
+                    }
+                }
+            }));
+        }
+
+        if (ForkJoinTask.inForkJoinPool() && ForkJoinTask.getPool() == pool) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            tasks.forEach(pool::execute);
+            tasks.forEach(ForkJoinTask::join);
+        }
+    }
+
+    /**
+     * The number of tasks waiting to run.
+     * @return The queue depth of the pool
+     */
+    public long queuedTasks() {
+        return pool.getQueuedTaskCount() + pool.getQueuedSubmissionCount();
+    }
+
+    /**
+     * The number of threads running tasks.
+     * @return The active workers of the pool
+     */
+    public int activeWorkers() {
+        return pool.getActiveThreadCount();
+    }
+
+    /**
+     * Summarizes the scheduler.
+     * @return A line with the parallelism, active workers and queue depth of the scheduler
+     */
+    @Override
+    public String toString() {
+        return String.format("Render scheduler: %d / %d threads, %d active, %d queued, %d steals",
+                parallelism, pool.getParallelism(), activeWorkers(), queuedTasks(), pool.getStealCount());
+    }
+
+    /**
+     * This class runs tasks on an executor, at most a number of tasks at once. Queued tasks don't hold a thread.
+     */
+    private static final class BoundedExecutor implements Executor {
+        private final Executor executor;
+        private final int maxRunning;
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger running = new AtomicInteger();
+
+        private BoundedExecutor(Executor executor, int maxRunning) {
+            this.executor = executor;
+            this.maxRunning = maxRunning;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            queue.add(task);
+            schedule();
+        }
+
+        /**
+         * Starts queued tasks while fewer than maxRunning tasks are running.
+         */
+        private void schedule() {
+            while (!queue.isEmpty()) {
+                int count = running.get();
+                if (count >= maxRunning) {
+                    return;
+                }
+                if (!running.compareAndSet(count, count + 1)) {
+                    continue;
+                }
+
+                Runnable task = queue.poll();
+                if (task == null) {
+                    running.decrementAndGet();
+                    continue;
+                }
+
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        // A finished task starts the next queued task
+                        running.decrementAndGet();
+                        schedule();
+                    }
+                });
+            }
+        }
+    }
+
+    private static ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("render-" + thread.getPoolIndex());
+        return thread;
+    }
+}
@@ -0,0 +1,127 @@
+package com.h3music.videoeditor.frame;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * This class reads and writes rows of pixels directly from the arrays backing a BufferedImage,
+ * instead of going through getRGB/setRGB for every pixel.
+ * Rows are exchanged as 32 bit ARGB ints, the same format getRGB/setRGB use.
+ * TYPE_INT_RGB, TYPE_INT_ARGB and TYPE_3BYTE_BGR (The type ImageIO returns for JPEGs) are read from their backing
+ * arrays, every other image type falls back to the bulk getRGB/setRGB methods.
+ */
+public final class Scanlines {
+
+    private Scanlines() {}
+
+    /**
+     * Reads one row of pixels.
+     * @param image The image to read from.
+     * @param y The row (Y) to read.
+     * @param row An array to reuse for the pixels, a new one is created when null or shorter than the image width.
+     * @return The row of 32 bit ARGB pixels
+     */
+    public static int[] read(BufferedImage image, int y, int[] row) {
+        int width = image.getWidth();
+
+        if (row == null || row.length < width) {
+            row = new int[width];
+        }
+
+        WritableRaster raster = image.getRaster();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB -> {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int offset = rowOffset(raster, y);
+
+                for (int x = 0; x < width; x++) {
+                    row[x] = 0xFF000000 | data[offset + x];
+                }
+            }
+            case BufferedImage.TYPE_INT_ARGB -> {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                System.arraycopy(data, rowOffset(raster, y), row, 0, width);
+            }
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int[] bandOffsets = ((ComponentSampleModel) raster.getSampleModel()).getBandOffsets();
+                int offset = rowOffset(raster, y);
+
+                for (int x = 0; x < width; x++, offset += 3) {
+                    row[x] = 0xFF000000
+                            | (data[offset + bandOffsets[0]] & 0xFF) << 16
+                            | (data[offset + bandOffsets[1]] & 0xFF) << 8
+                            | (data[offset + bandOffsets[2]] & 0xFF);
+                }
+            }
+            default -> image.getRGB(0, y, width, 1, row, 0, width);
+        }
+        return row;
+    }
+
+    /**
+     * Writes one row of pixels.
+     * @param image The image to write to.
+     * @param y The row (Y) to write.
+     * @param row The row of 32 bit ARGB pixels, at least as long as the image width.
+     */
+    public static void write(BufferedImage image, int y, int[] row) {
+        int width = image.getWidth();
+        WritableRaster raster = image.getRaster();
+
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB -> {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                int offset = rowOffset(raster, y);
+
+                for (int x = 0; x < width; x++) {
+                    data[offset + x] = row[x] & 0xFFFFFF;
+                }
+            }
+            case BufferedImage.TYPE_INT_ARGB -> {
+                int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+                System.arraycopy(row, 0, data, rowOffset(raster, y), width);
+            }
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+                int[] bandOffsets = ((ComponentSampleModel) raster.getSampleModel()).getBandOffsets();
+                int offset = rowOffset(raster, y);
+
+                for (int x = 0; x < width; x++, offset += 3) {
+                    int pixel = row[x];
+                    data[offset + bandOffsets[0]] = (byte) (pixel >> 16);
+                    data[offset + bandOffsets[1]] = (byte) (pixel >> 8);
+                    data[offset + bandOffsets[2]] = (byte) pixel;
+                }
+            }
+            default -> image.setRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+
+    /**
+     * Finds the index of the first pixel of a row in the backing array.
+     * Accounts for sub images, which share the backing array of their parent image.
+     * @param raster The raster of the image.
+     * @param y The row (Y) of the image.
+     * @return The index of the first element of the row's first pixel
+     */
+    private static int rowOffset(WritableRaster raster, int y) {
+        SampleModel sampleModel = raster.getSampleModel();
+        int x0 = -raster.getSampleModelTranslateX();
+        int y0 = y - raster.getSampleModelTranslateY();
+        int offset = raster.getDataBuffer().getOffset();
+
+        if (sampleModel instanceof SinglePixelPackedSampleModel packed) {
+            return offset + y0 * packed.getScanlineStride() + x0;
+        }
+
+        ComponentSampleModel component = (ComponentSampleModel) sampleModel;
+        return offset + y0 * component.getScanlineStride() + x0 * component.getPixelStride();
+    }
+}
@@ -0,0 +1,104 @@
+package com.h3music.videoeditor.frame;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * This class splits the rows of a single image into stripes that are processed in parallel.
+ * The amount of stripes is chosen by image size, so small images (Ex. Thumbnails) stay on the calling thread.
+ */
+public final class Stripes {
+    /**
+     * The minimum amount of pixels in a stripe. Smaller stripes cost more to schedule than they save.
+     */
+    public static final int MIN_STRIPE_PIXELS = 256 * 1024;
+
+    /**
+     * An executor that processes every stripe on the calling thread. Used when the caller already runs one task
+     * per frame, and splitting each frame would only add scheduling overhead.
+     */
+    public static final Executor SAME_THREAD = Runnable::run;
+
+    private Stripes() {}
+
+    /**
+     * The work done on a stripe of rows.
+     */
+    @FunctionalInterface
+    public interface RowKernel {
+        /**
+         * Processes a stripe of rows.
+         * @param startY The first row (Y) of the stripe.
+         * @param endY The row (Y) after the last row of the stripe.
+         */
+        void process(int startY, int endY);
+    }
+
+    /**
+     * Processes every row of an image, split into stripes run on the executor.
+     * Returns once every stripe is complete.
+     * @param width The width (X) of the image in pixels.
+     * @param height The height (Y) of the image in pixels.
+     * @param executor The executor to run stripes on. Must not be a bounded pool the calling thread belongs to.
+     * @param kernel The work done on each stripe.
+     */
+    public static void process(int width, int height, Executor executor, RowKernel kernel) {
+        int stripeCount = stripeCount(width, height, parallelism(executor));
+
+        if (stripeCount <= 1) {
+            kernel.process(0, height);
+            return;
+        }
+
+        CompletableFuture<?>[] stripes = new CompletableFuture<?>[stripeCount];
+
+        for (int i = 0; i < stripeCount; i++) {
+            int startY = (int) ((long) height * i / stripeCount);
+            int endY = (int) ((long) height * (i + 1) / stripeCount);
+
+            stripes[i] = CompletableFuture.runAsync(() -> kernel.process(startY, endY), executor);
+        }
+
+        try {
+            CompletableFuture.allOf(stripes).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Chooses the amount of stripes for an image.
+     * @param width The width (X) of the image in pixels.
+     * @param height The height (Y) of the image in pixels.
+     * @param parallelism The amount of threads available to process stripes.
+     * @return The amount of stripes, 1 if the image should be processed on the calling thread.
+     */
+    static int stripeCount(int width, int height, int parallelism) {
+        long bySize = (long) width * height / MIN_STRIPE_PIXELS;
+        return (int) Math.max(1, Math.min(Math.min(bySize, parallelism), height));
+    }
+
+    /**
+     * Finds the amount of threads an executor can run stripes on.
+     * @param executor The executor to run stripes on.
+     * @return The amount of threads
+     */
+    private static int parallelism(Executor executor) {
+        if (executor == SAME_THREAD) {
+            return 1;
+        } else if (executor instanceof ForkJoinPool forkJoinPool) {
+            return forkJoinPool.getParallelism();
+        } else if (executor instanceof ThreadPoolExecutor threadPoolExecutor) {
+            return threadPoolExecutor.getMaximumPoolSize();
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
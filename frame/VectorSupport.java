@@ -0,0 +1,30 @@
+package com.h3music.videoeditor.frame;
+
+/**
+ * This class decides if the optional Vector API (jdk.incubator.vector) kernels may be used.
+ * The Vector API kernels are opt-in, the JVM must be started with
+ * "--add-modules jdk.incubator.vector -Dvideoeditor.vector=true". Otherwise, the scalar kernels are used.
+ */
+public final class VectorSupport {
+    /**
+     * The system property that enables the Vector API kernels.
+     */
+    public static final String PROPERTY = "videoeditor.vector";
+
+    /**
+     * The minimum size, in bits, of the CPU's preferred vectors for the Vector API kernels to be used.
+     * Narrower CPUs don't process enough lanes at once to beat the scalar kernels.
+     */
+    public static final int MIN_VECTOR_BITS = 256;
+
+    private VectorSupport() {}
+
+    /**
+     * Checks if the Vector API kernels were requested, and the incubator module is available.
+     * @return true if Vector API kernels should be loaded
+     */
+    public static boolean requested() {
+        return Boolean.getBoolean(PROPERTY)
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+}
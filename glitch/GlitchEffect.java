@@ -1,34 +1,49 @@
 package com.h3music.videoeditor.glitch;
 
-import javax.imageio.ImageIO;
+import com.h3music.videoeditor.frame.FrameCodec;
+import com.h3music.videoeditor.frame.FramePool;
+import com.h3music.videoeditor.frame.MemoryBudget;
+import com.h3music.videoeditor.frame.RenderScheduler;
+import com.h3music.videoeditor.frame.Stripes;
+
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 /**
  * This class creates composite image frames of an offset glitch effect applied to a still image or frames of a video
  */
 public class GlitchEffect {
+    /**
+     * The system property to configure the default seed of the glitch offsets. Defaults to 0.
+     */
+    public static final String SEED_PROPERTY = "videoeditor.glitchSeed";
+
+    /**
+     * The SplitMix64 increment, the golden ratio as a 64 bit fraction.
+     */
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * The number of random draws for each glitch frame, one for each offset.
+     */
+    private static final int OFFSET_COUNT = 8;
+
     /**
      * This is the master Glitch Effect method. It provides a foundation for overload methods.
      * @param source source An array list of image files, usually video frames, to have the glitch effect applied to.
      * @param outputFolder An output folder location for the composite images.
      * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
-     * @param maxThreads Hard limits the amount of threads used by the method.
-     *      If heap memory errors are occurring lower this number.
-     *      Performance has diminishing returns when maxThreads > physical CPU cores.
-     *      Default value in overloaded methods is 4.
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
      * @param maxLength The max number of frames to render. Only if the source input is larger.
      *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     * @param codec The format to write the composite images in, Ex. FrameCodec.forRender.
+     * @param seed The seed of the glitch offsets. The same seed always creates the same composite images.
      */
-    public static void glitch(ArrayList<File> source, File outputFolder, int amplification, int maxThreads, int maxLength) {
-
-        ExecutorService executorService = Executors.newFixedThreadPool(maxThreads);
+    public static void glitch(ArrayList<File> source, File outputFolder, int amplification,
+                              RenderScheduler scheduler, int maxLength, FrameCodec codec, long seed) {
 
         int length = source.size();
 
@@ -36,23 +51,120 @@ public class GlitchEffect {
             length = maxLength;
         }
 
-        for (int i = 0; i < length; i++) {
+        int finalLength = length;
+
+        // Each task also decodes its source
+        long pixels = source.isEmpty() ? 0 : MemoryBudget.pixels(source.get(0));
+        long frameBytes = RgbOffset.footprint(pixels) + MemoryBudget.imageBytes(pixels, 1);
 
-            int sourceI = ((i % length) + length) % length;
-            int finalI = i;
+        scheduler.forEach(length, frameBytes, i -> {
+
+            int sourceI = ((i % finalLength) + finalLength) % finalLength;
 
             File sourceFile = source.get(sourceI);
 
-            Runnable task = () -> glitchProcessing(sourceFile, finalI, outputFolder, amplification, maxLength);
+            glitchProcessing(sourceFile, i, outputFolder, amplification, maxLength, codec, seed);
+        });
+    }
 
-            executorService.execute(task);
-        }
-        executorService.shutdown();
-        try {
-            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+    /**
+     * This is an overloaded method to apply the glitch effect to an array of source images, with the default seed.
+     * @param source source An array list of image files, usually video frames, to have the glitch effect applied to.
+     * @param outputFolder An output folder location for the composite images.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     * @param maxLength The max number of frames to render. Only if the source input is larger.
+     *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     * @param codec The format to write the composite images in, Ex. FrameCodec.forRender.
+     */
+    public static void glitch(ArrayList<File> source, File outputFolder, int amplification,
+                              RenderScheduler scheduler, int maxLength, FrameCodec codec) {
+        glitch(source, outputFolder, amplification, scheduler, maxLength, codec, defaultSeed());
+    }
+
+    /**
+     * This is an overloaded method to apply the glitch effect to an array of source images, writing JPEG composite images.
+     * @param source source An array list of image files, usually video frames, to have the glitch effect applied to.
+     * @param outputFolder An output folder location for the composite images.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     * @param maxLength The max number of frames to render. Only if the source input is larger.
+     *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     */
+    public static void glitch(ArrayList<File> source, File outputFolder, int amplification,
+                              RenderScheduler scheduler, int maxLength) {
+        glitch(source, outputFolder, amplification, scheduler, maxLength, FrameCodec.jpeg());
+    }
+
+    /**
+     * This is an overloaded method to apply the glitch effect to an array of source images, on the shared render scheduler.
+     * @param source source An array list of image files, usually video frames, to have the glitch effect applied to.
+     * @param outputFolder An output folder location for the composite images.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param maxThreads Hard limits the amount of frames processed at once.
+     *      If heap memory errors are occurring lower this number.
+     *      Performance has diminishing returns when maxThreads > physical CPU cores.
+     *      Default value in overloaded methods is 4.
+     * @param maxLength The max number of frames to render. Only if the source input is larger.
+     *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     */
+    public static void glitch(ArrayList<File> source, File outputFolder, int amplification, int maxThreads, int maxLength) {
+        glitch(source, outputFolder, amplification, RenderScheduler.shared().withParallelism(maxThreads), maxLength);
+    }
+
+    /**
+     * This is the master method for decoded source images. Sources are decoded once, and shared by every thread.
+     * @param source An array list of decoded images, usually video frames, to have the glitch effect applied to.
+     *               They are only read, never modified.
+     * @param outputFolder An output folder location for the composite images.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     * @param maxLength The max number of frames to render. Only if the source input is larger.
+     *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     * @param codec The format to write the composite images in, Ex. FrameCodec.forRender.
+     * @param seed The seed of the glitch offsets. The same seed always creates the same composite images.
+     */
+    public static void glitch(List<BufferedImage> source, File outputFolder, int amplification,
+                              RenderScheduler scheduler, int maxLength, FrameCodec codec, long seed) {
+
+        int length = Math.min(source.size(), maxLength);
+
+        long frameBytes = source.isEmpty() ? 0
+                : RgbOffset.footprint((long) source.get(0).getWidth() * source.get(0).getHeight());
+
+        scheduler.forEach(length, frameBytes,
+                i -> glitchProcessing(source.get(i), i, outputFolder, amplification, maxLength, codec, seed));
+    }
+
+    /**
+     * This is an overloaded method for decoded source images, with the default seed.
+     * @param source An array list of decoded images, usually video frames, to have the glitch effect applied to.
+     *               They are only read, never modified.
+     * @param outputFolder An output folder location for the composite images.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     * @param maxLength The max number of frames to render. Only if the source input is larger.
+     *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     * @param codec The format to write the composite images in, Ex. FrameCodec.forRender.
+     */
+    public static void glitch(List<BufferedImage> source, File outputFolder, int amplification,
+                              RenderScheduler scheduler, int maxLength, FrameCodec codec) {
+        glitch(source, outputFolder, amplification, scheduler, maxLength, codec, defaultSeed());
+    }
+
+    /**
+     * This is an overloaded method for decoded source images, writing JPEG composite images.
+     * @param source An array list of decoded images, usually video frames, to have the glitch effect applied to.
+     *               They are only read, never modified.
+     * @param outputFolder An output folder location for the composite images.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     * @param maxLength The max number of frames to render. Only if the source input is larger.
+     *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     */
+    public static void glitch(List<BufferedImage> source, File outputFolder, int amplification,
+                              RenderScheduler scheduler, int maxLength) {
+        glitch(source, outputFolder, amplification, scheduler, maxLength, FrameCodec.jpeg());
     }
 
     /**
@@ -81,11 +193,15 @@ public class GlitchEffect {
      *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
      */
     public static void glitch(File source, File outputFolder, int amplification, int maxThreads, int maxLength) {
+        try {
+            BufferedImage sourceImage = FrameCodec.read(source);
 
-        ArrayList<File> sourceArray = new ArrayList<>();
-        sourceArray.add(source);
+            glitch(List.of(sourceImage), outputFolder, amplification,
+                    RenderScheduler.shared().withParallelism(maxThreads), maxLength);
 
-        glitch (sourceArray, outputFolder, amplification, maxThreads, maxLength);
+        } catch (IOException io) {
+            io.printStackTrace();
+        }
     }
 
     /**
@@ -109,45 +225,154 @@ public class GlitchEffect {
      * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
      * @param maxLength The max number of frames to render. Only if the source input is larger.
      *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     * @param codec The format to write the composite image in.
+     * @param seed The seed of the glitch offsets.
      */
-    private static void glitchProcessing(File sourceFile, int i, File outputFolder, int amplification, int maxLength) {
+    private static void glitchProcessing(File sourceFile, int i, File outputFolder, int amplification, int maxLength,
+                                         FrameCodec codec, long seed) {
+        try {
+            BufferedImage source = FrameCodec.read(sourceFile);
 
-        double inside = (Math.log(0.01) / (maxLength)) * i;
-        double multiplier = amplification * Math.pow(Math.E, inside);
+            glitchProcessing(source, i, outputFolder, amplification, maxLength, codec, seed);
 
-        int dX = randomOffsetAmount(200, multiplier);
-        int dY = randomOffsetAmount(200, multiplier);
-        int dRX = randomOffsetAmount(100, multiplier);
-        int dRY = randomOffsetAmount(100, multiplier);
-        int dGX = randomOffsetAmount(100, multiplier);
-        int dGY = randomOffsetAmount(100, multiplier);
-        int dBX = randomOffsetAmount(100, multiplier);
-        int dBY = randomOffsetAmount(100, multiplier);
+        } catch (IOException io) {
+            io.printStackTrace();
+        }
+    }
 
+    /**
+     * This method provides the logic for individual composite image creation from a decoded source.
+     * @param source A decoded image to have the glitch effect applied to. It is only read, never modified.
+     * @param i The iteration to name the output composite file.
+     * @param outputFolder An output folder location for the composite images.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param maxLength The max number of frames to render. Only if the source input is larger.
+     *                  Ex. Applicable when you don't want to render 128 glitch frames from the source if you only need 48.
+     * @param codec The format to write the composite image in.
+     * @param seed The seed of the glitch offsets.
+     */
+    private static void glitchProcessing(BufferedImage source, int i, File outputFolder, int amplification, int maxLength,
+                                         FrameCodec codec, long seed) {
         try {
-            BufferedImage source = ImageIO.read(sourceFile);
-            File outputFile = new File(outputFolder, i + ".jpg");
+            File outputFile = new File(outputFolder, codec.fileName(i));
+
+            try (FramePool.Lease<BufferedImage> output = FramePool.shared().image(source.getWidth(),
+                    source.getHeight(), BufferedImage.TYPE_INT_RGB)) {
 
-            BufferedImage output = RgbOffset.offset(source, dX, dY, dRX, dRY, dGX, dGY, dBX, dBY);
+                glitchFrame(source, offsets(i, amplification, maxLength, seed), output.get());
 
-            ImageIO.write(output, "jpg", outputFile);
+                codec.write(output.get(), outputFile);
+            }
 
         } catch (IOException io) {
             io.printStackTrace();
         }
     }
 
+    /**
+     * Method to randomize the offsets of a glitch frame. The effect decays over the glitch, from the full
+     * amplification at the first frame to 1% of it at maxLength.
+     * Offsets only depend on the seed and the iteration, not the thread or order frames are created in,
+     * so the same seed always creates the same glitch frames.
+     * @param i The iteration of the glitch frame.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param maxLength The number of frames in the glitch.
+     * @param seed The seed of the glitch offsets.
+     * @return The offsets {dX, dY, dRX, dRY, dGX, dGY, dBX, dBY} to pass to glitchFrame
+     */
+    public static int[] offsets(int i, int amplification, int maxLength, long seed) {
+
+        double inside = (Math.log(0.01) / (maxLength)) * i;
+        double multiplier = amplification * Math.pow(Math.E, inside);
+
+        long draw = (long) i * OFFSET_COUNT;
+
+        return new int[]{
+                randomOffsetAmount(200, multiplier, seed, draw),
+                randomOffsetAmount(200, multiplier, seed, draw + 1),
+                randomOffsetAmount(100, multiplier, seed, draw + 2),
+                randomOffsetAmount(100, multiplier, seed, draw + 3),
+                randomOffsetAmount(100, multiplier, seed, draw + 4),
+                randomOffsetAmount(100, multiplier, seed, draw + 5),
+                randomOffsetAmount(100, multiplier, seed, draw + 6),
+                randomOffsetAmount(100, multiplier, seed, draw + 7)
+        };
+    }
+
+    /**
+     * Method to randomize the offsets of a glitch frame with the default seed.
+     * @param i The iteration of the glitch frame.
+     * @param amplification How strong the effect is (Usually a value between 1-5 suffices)
+     * @param maxLength The number of frames in the glitch.
+     * @return The offsets {dX, dY, dRX, dRY, dGX, dGY, dBX, dBY} to pass to glitchFrame
+     */
+    public static int[] offsets(int i, int amplification, int maxLength) {
+        return offsets(i, amplification, maxLength, defaultSeed());
+    }
+
+    /**
+     * The seed used when none is given, from the seed property.
+     * @return The default seed
+     */
+    public static long defaultSeed() {
+        return Long.getLong(SEED_PROPERTY, 0L);
+    }
+
+    /**
+     * This method creates a single glitch frame in memory, without writing it to a file.
+     * Used when frames are streamed straight to the encoder.
+     * @param source A decoded image to have the glitch effect applied to. It is only read, never modified.
+     * @param offsets The offsets {dX, dY, dRX, dRY, dGX, dGY, dBX, dBY} of the frame, from the offsets method.
+     * @return The glitch frame
+     */
+    public static BufferedImage glitchFrame(BufferedImage source, int[] offsets) {
+        return glitchFrame(source, offsets,
+                new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB));
+    }
+
+    /**
+     * This method creates a single glitch frame into a destination image, Ex. One leased from the FramePool.
+     * @param source A decoded image to have the glitch effect applied to. It is only read, never modified.
+     * @param offsets The offsets {dX, dY, dRX, dRY, dGX, dGY, dBX, dBY} of the frame, from the offsets method.
+     * @param destination The image to store the glitch frame in. Must be the same size as the source,
+     *                    and must not be the source.
+     * @return The destination image
+     */
+    public static BufferedImage glitchFrame(BufferedImage source, int[] offsets, BufferedImage destination) {
+        RgbOffset.offset(source, destination, offsets[0], offsets[1], offsets[2], offsets[3],
+                offsets[4], offsets[5], offsets[6], offsets[7], Stripes.SAME_THREAD);
+        return destination;
+    }
+
     /**
      * Method to create a random int within range and multiplier parameters
      * @param range The range size for the random integer
      * @param multiplier The amplification of the randomized integer
+     * @param seed The seed of the glitch offsets.
+     * @param draw The index of the random value, each draw of a seed is independent of the others.
      * @return An integer formed from the random value within the range, multiplied by the multiplier
      */
-    private static int randomOffsetAmount(int range, double multiplier) {
+    private static int randomOffsetAmount(int range, double multiplier, long seed, long draw) {
 
         int x = range / -2;
         int y = range / 2 + 1;
 
-        return (int) (ThreadLocalRandom.current().nextInt(x, y) * multiplier);
+        // The high 32 bits scaled to the range, instead of a modulo, so every value is equally likely
+        long bits = splitMix(seed + (draw + 1) * GOLDEN_GAMMA) >>> 32;
+        int value = x + (int) ((bits * (y - x)) >>> 32);
+
+        return (int) (value * multiplier);
+    }
+
+    /**
+     * The SplitMix64 output function. Mixes a counter into a random 64 bit value,
+     * so any draw can be found directly, without the draws before it.
+     * @param z The seed plus the draw's multiple of the golden gamma.
+     * @return The random value
+     */
+    private static long splitMix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 }
@@ -0,0 +1,147 @@
+package com.h3music.videoeditor.glitch;
+
+import com.h3music.videoeditor.frame.MemoryBudget;
+import com.h3music.videoeditor.frame.Scanlines;
+import com.h3music.videoeditor.frame.Stripes;
+import com.h3music.videoeditor.grain.BlendMode;
+import com.h3music.videoeditor.grain.ChannelBlend;
+import com.h3music.videoeditor.grain.GrainCache;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * This class creates glitch frames of a grain frame straight from the decoded background and the grain frame,
+ * in one pass. Each glitch pixel blends only the channels it gathers from the offset positions, so the grain frame
+ * is never stored, written or read back.
+ * The result matches GlitchEffect.glitchFrame applied to GrainEffect.grainFrame, for 8 bit RGB backgrounds.
+ */
+public final class GrainGlitch {
+
+    private GrainGlitch() {}
+
+    /**
+     * This method creates a single glitch frame of a grain frame in memory.
+     * @param source A decoded image to have the grain overlay and glitch effect applied to. It is only read, never modified.
+     * @param grainFile An image file to overlay blend over the source image.
+     * @param opacity The opacity of the grain over the source.
+     * @param offsets The offsets {dX, dY, dRX, dRY, dGX, dGY, dBX, dBY} of the frame, from GlitchEffect.offsets.
+     * @return The glitch frame
+     * @throws IOException If the grain frame can't be read
+     */
+    public static BufferedImage glitchFrame(BufferedImage source, File grainFile, double opacity, int[] offsets)
+            throws IOException {
+        return glitchFrame(source, grainFile, opacity, offsets,
+                new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_RGB));
+    }
+
+    /**
+     * This method creates a single glitch frame of a grain frame into a destination image,
+     * Ex. One leased from the FramePool.
+     * @param source A decoded image to have the grain overlay and glitch effect applied to. It is only read, never modified.
+     * @param grainFile An image file to overlay blend over the source image.
+     * @param opacity The opacity of the grain over the source.
+     * @param offsets The offsets {dX, dY, dRX, dRY, dGX, dGY, dBX, dBY} of the frame, from GlitchEffect.offsets.
+     * @param destination The image to store the glitch frame in. Must be the same size as the source,
+     *                    and must not be the source.
+     * @return The destination image
+     * @throws IOException If the grain frame can't be read
+     */
+    public static BufferedImage glitchFrame(BufferedImage source, File grainFile, double opacity, int[] offsets,
+                                            BufferedImage destination) throws IOException {
+        BufferedImage grain = GrainCache.shared().get(grainFile, source.getWidth(), source.getHeight());
+
+        glitchFrame(source, grain, opacity, offsets, destination, Stripes.SAME_THREAD);
+
+        return destination;
+    }
+
+    /**
+     * This method creates a single glitch frame of a grain frame into a destination image.
+     * @param source A decoded image to have the grain overlay and glitch effect applied to. It is only read, never modified.
+     * @param grain The decoded grain frame, the same size as the source. It is only read, never modified.
+     * @param opacity The opacity of the grain over the source.
+     * @param offsets The offsets {dX, dY, dRX, dRY, dGX, dGY, dBX, dBY} of the frame, from GlitchEffect.offsets.
+     * @param destination The image to store the glitch frame in. Must be the same size as the source,
+     *                    and must not be the source or the grain frame.
+     * @param executor The executor to process stripes on. Use Stripes.SAME_THREAD when already running one task per frame.
+     */
+    public static void glitchFrame(BufferedImage source, BufferedImage grain, double opacity, int[] offsets,
+                                   BufferedImage destination, Executor executor) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        if (grain.getWidth() != width || grain.getHeight() != height
+                || destination.getWidth() != width || destination.getHeight() != height) {
+            throw new IllegalArgumentException("Grain and destination must be " + width + "x" + height);
+        }
+
+        ChannelBlend blend = ChannelBlend.of(BlendMode.Mode.OVERLAY, opacity);
+
+        int redShift = RgbOffset.wrap(offsets[2] + offsets[0], width);
+        int greenShift = RgbOffset.wrap(offsets[4] + offsets[0], width);
+        int blueShift = RgbOffset.wrap(offsets[6] + offsets[0], width);
+
+        int[] spanEdges = RgbOffset.spanEdges(redShift, greenShift, blueShift, width);
+
+        Stripes.process(width, height, executor, (startY, endY) -> {
+            int[][] sourceRows = new int[3][width];
+            int[][] grainRows = new int[3][width];
+            int[] compositeRow = new int[width];
+
+            for (int y = startY; y < endY; y++) {
+                // The source rows the channels of this row come from
+                int rY = RgbOffset.wrap(y - offsets[3] - offsets[1], height);
+                int gY = RgbOffset.wrap(y - offsets[5] - offsets[1], height);
+                int bY = RgbOffset.wrap(y - offsets[7] - offsets[1], height);
+
+                int[] redSource = Scanlines.read(source, rY, sourceRows[0]);
+                int[] redGrain = Scanlines.read(grain, rY, grainRows[0]);
+
+                int[] greenSource = redSource;
+                int[] greenGrain = redGrain;
+                if (gY != rY) {
+                    greenSource = Scanlines.read(source, gY, sourceRows[1]);
+                    greenGrain = Scanlines.read(grain, gY, grainRows[1]);
+                }
+
+                int[] blueSource = bY == rY ? redSource : bY == gY ? greenSource : null;
+                int[] blueGrain = bY == rY ? redGrain : bY == gY ? greenGrain : null;
+                if (blueSource == null) {
+                    blueSource = Scanlines.read(source, bY, sourceRows[2]);
+                    blueGrain = Scanlines.read(grain, bY, grainRows[2]);
+                }
+
+                for (int i = 0; i + 1 < spanEdges.length; i++) {
+                    int start = spanEdges[i];
+                    int end = spanEdges[i + 1];
+
+                    int redOffset = RgbOffset.sourceOffset(start, redShift, width);
+                    int greenOffset = RgbOffset.sourceOffset(start, greenShift, width);
+                    int blueOffset = RgbOffset.sourceOffset(start, blueShift, width);
+
+                    for (int x = start; x < end; x++) {
+                        compositeRow[x] = 0xFF000000
+                                | blend.channel(redSource[x + redOffset], redGrain[x + redOffset], 16) << 16
+                                | blend.channel(greenSource[x + greenOffset], greenGrain[x + greenOffset], 8) << 8
+                                | blend.channel(blueSource[x + blueOffset], blueGrain[x + blueOffset], 0);
+                    }
+                }
+
+                Scanlines.write(destination, y, compositeRow);
+            }
+        });
+    }
+
+    /**
+     * Estimates the memory held while creating a glitch frame of a grain frame: the glitch frame,
+     * and a grain frame being decoded before it is cached.
+     * @param pixels The number of pixels of the source. (width * height)
+     * @return The estimated footprint in bytes
+     */
+    public static long footprint(long pixels) {
+        return MemoryBudget.imageBytes(pixels, 2);
+    }
+}
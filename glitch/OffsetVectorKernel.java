@@ -0,0 +1,58 @@
+package com.h3music.videoeditor.glitch;
+
+import com.h3music.videoeditor.frame.VectorSupport;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * This class provides a Vector API (SIMD) version of the color channel gather used by RgbOffset.
+ * Only loaded when requested through {@link VectorSupport}.
+ */
+final class OffsetVectorKernel {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private OffsetVectorKernel() {}
+
+    /**
+     * Creates the kernel if the CPU's preferred vector species is wide enough to be worth it.
+     * @return The kernel, or null if the scalar kernel should be used
+     */
+    static OffsetVectorKernel create() {
+        if (SPECIES.vectorBitSize() < VectorSupport.MIN_VECTOR_BITS) {
+            return null;
+        }
+        return new OffsetVectorKernel();
+    }
+
+    /**
+     * Combines a span of composite pixels from the Red, Green and Blue source rows.
+     * @param redRow The source row of the Red Channel
+     * @param redOffset The offset from a composite pixel to its Red Channel source pixel.
+     * @param greenRow The source row of the Green Channel
+     * @param greenOffset The offset from a composite pixel to its Green Channel source pixel.
+     * @param blueRow The source row of the Blue Channel
+     * @param blueOffset The offset from a composite pixel to its Blue Channel source pixel.
+     * @param compositeRow The row to store the composite pixels in.
+     * @param start The first pixel of the span.
+     * @param end The pixel after the last pixel of the span.
+     */
+    void gather(int[] redRow, int redOffset, int[] greenRow, int greenOffset,
+                int[] blueRow, int blueOffset, int[] compositeRow, int start, int end) {
+        int upperBound = start + SPECIES.loopBound(end - start);
+        int x = start;
+
+        for (; x < upperBound; x += SPECIES.length()) {
+            IntVector red = IntVector.fromArray(SPECIES, redRow, x + redOffset).and(0xFF0000);
+            IntVector green = IntVector.fromArray(SPECIES, greenRow, x + greenOffset).and(0xFF00);
+            IntVector blue = IntVector.fromArray(SPECIES, blueRow, x + blueOffset).and(0xFF);
+
+            red.or(green).or(blue).or(0xFF000000).intoArray(compositeRow, x);
+        }
+        for (; x < end; x++) {
+            compositeRow[x] = 0xFF000000
+                    | (redRow[x + redOffset] & 0xFF0000)
+                    | (greenRow[x + greenOffset] & 0xFF00)
+                    | (blueRow[x + blueOffset] & 0xFF);
+        }
+    }
+}
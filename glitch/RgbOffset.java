@@ -1,15 +1,27 @@
 package com.h3music.videoeditor.glitch;
 
+import com.h3music.videoeditor.frame.MemoryBudget;
+import com.h3music.videoeditor.frame.Scanlines;
+import com.h3music.videoeditor.frame.Stripes;
+import com.h3music.videoeditor.frame.VectorSupport;
+
 import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Class to Offset the position of an inputted BufferedImage. Functionality allows offset of individual channels as well.
  */
 public class RgbOffset {
+    /**
+     * The optional Vector API kernel, null when the scalar kernel is used.
+     */
+    private static final OffsetVectorKernel VECTOR_KERNEL = loadVectorKernel();
+
     /**
      * Method to apply the position offset. This method only provides pixel offsets, not individual color channels
      * @param image the BufferedImage inputted to have the offset applied to
@@ -38,24 +50,44 @@ public class RgbOffset {
     public static BufferedImage offset(BufferedImage image, int xOffset, int yOffset,
                                        int rxOffset, int ryOffset, int gxOffset,
                                        int gyOffset, int bxOffset, int byOffset) {
+        return offset(image, xOffset, yOffset, rxOffset, ryOffset, gxOffset, gyOffset, bxOffset, byOffset,
+                ForkJoinPool.commonPool());
+    }
 
-        int height = image.getHeight();
-        int width =  image.getWidth();
+    /**
+     * Method to apply the position offset, with the rows of the image split into stripes processed in parallel.
+     * Small images are processed on the calling thread.
+     * @param image the BufferedImage inputted to have the offset applied to
+     * @param xOffset the amount of pixels position should offset by in the X (Width) direction
+     * @param yOffset the amount of pixels position should offset by in the Y (Height) direction
+     * @param rxOffset the amount of pixels red channel position should offset by in the X (Width) direction
+     * @param ryOffset the amount of pixels red channel position should offset by in the Y (Height) direction
+     * @param gxOffset the amount of pixels green channel position should offset by in the X (Width) direction
+     * @param gyOffset the amount of pixels green channel position should offset by in the Y (Height) direction
+     * @param bxOffset the amount of pixels blue channel position should offset by in the X (Width) direction
+     * @param byOffset the amount of pixels blue channel position should offset by in the Y (Height) direction
+     * @param executor the executor to process stripes on. Use Stripes.SAME_THREAD when already running one task per frame
+     * @return the BufferedImage with the position offsets applied
+     */
+    public static BufferedImage offset(BufferedImage image, int xOffset, int yOffset,
+                                       int rxOffset, int ryOffset, int gxOffset,
+                                       int gyOffset, int bxOffset, int byOffset, Executor executor) {
 
-        BufferedImage redChannel = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        BufferedImage greenChannel = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        BufferedImage blueChannel = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        BufferedImage compositeImage = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
 
-        offsetChannels(image, xOffset, yOffset,
-                rxOffset, ryOffset, gxOffset, gyOffset, bxOffset, byOffset,
-                height, width, redChannel, greenChannel, blueChannel);
+        offset(image, compositeImage, xOffset, yOffset,
+                rxOffset, ryOffset, gxOffset, gyOffset, bxOffset, byOffset, executor);
 
-        return combineChannels(height, width, redChannel, greenChannel, blueChannel);
+        return compositeImage;
     }
 
     /**
-     * Method to offset the position of the individual color channels
-     * @param image the BufferedImage inputted to have the offset applied to
+     * Method to apply the position offset into a destination image, in a single pass without intermediate images.
+     * Each destination pixel gathers its Red, Green and Blue values from the three offset source positions.
+     * @param image the BufferedImage inputted to have the offset applied to. It is only read, never modified
+     * @param destination the BufferedImage to store the composite in. Must be the same size as the image,
+     *                    and must not be the image
      * @param xOffset the amount of pixels position should offset by in the X (Width) direction
      * @param yOffset the amount of pixels position should offset by in the Y (Height) direction
      * @param rxOffset the amount of pixels red channel position should offset by in the X (Width) direction
@@ -64,76 +96,147 @@ public class RgbOffset {
      * @param gyOffset the amount of pixels green channel position should offset by in the Y (Height) direction
      * @param bxOffset the amount of pixels blue channel position should offset by in the X (Width) direction
      * @param byOffset the amount of pixels blue channel position should offset by in the Y (Height) direction
-     * @param height the height (Y) of the original image in pixels
-     * @param width the width (X) of the original image in pixels
-     * @param redChannel the BufferedImage of the offset applied Red Channel
-     * @param greenChannel the BufferedImage of the offset applied Green Channel
-     * @param blueChannel the BufferedImage of the offset applied Blue Channel
+     * @param executor the executor to process stripes on. Use Stripes.SAME_THREAD when already running one task per frame
      */
-    private static void offsetChannels(BufferedImage image, int xOffset, int yOffset,
-                                       int rxOffset, int ryOffset, int gxOffset,
-                                       int gyOffset, int bxOffset, int byOffset,
-                                       int height, int width,
-                                       BufferedImage redChannel,
-                                       BufferedImage greenChannel,
-                                       BufferedImage blueChannel) {
-
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-
-                int srcPixel = image.getRGB(x, y);
-                int srcRed = (srcPixel >> 16) & 0xFF;
-                int srcGreen = (srcPixel >> 8) & 0xFF;
-                int srcBlue = srcPixel & 0xFF;
-
-                Color srcColor = new Color(srcRed, srcGreen, srcBlue);
-
-                // Apply Offset, if offset is negative, wrap to other side using modulo
-                int rX = (((rxOffset + xOffset + x) % width) + width) % width;
-                int rY = (((ryOffset + yOffset + y) % height) + height) % height;
-                int gX = (((gxOffset + xOffset + x) % width) + width) % width;
-                int gY = (((gyOffset + yOffset + y) % height) + height) % height;
-                int bX = (((bxOffset + xOffset + x) % width) + width) % width;
-                int bY = (((byOffset + yOffset + y) % height) + height) % height;
-
-                redChannel.setRGB(rX, rY, srcColor.getRed() << 16);
-                greenChannel.setRGB(gX, gY, srcColor.getGreen() << 8);
-                blueChannel.setRGB(bX, bY, srcColor.getBlue());
+    public static void offset(BufferedImage image, BufferedImage destination, int xOffset, int yOffset,
+                              int rxOffset, int ryOffset, int gxOffset,
+                              int gyOffset, int bxOffset, int byOffset, Executor executor) {
+
+        int height = image.getHeight();
+        int width = image.getWidth();
+
+        if (destination.getWidth() != width || destination.getHeight() != height) {
+            throw new IllegalArgumentException("Destination is " + destination.getWidth() + "x"
+                    + destination.getHeight() + ", expected " + width + "x" + height);
+        }
+
+        // The offset of each channel, wrapped once instead of for every pixel
+        int redShift = wrap(rxOffset + xOffset, width);
+        int greenShift = wrap(gxOffset + xOffset, width);
+        int blueShift = wrap(bxOffset + xOffset, width);
+
+        int[] spanEdges = spanEdges(redShift, greenShift, blueShift, width);
+
+        Stripes.process(width, height, executor, (startY, endY) -> {
+            int[] redRow = new int[width];
+            int[] greenRow = new int[width];
+            int[] blueRow = new int[width];
+            int[] compositeRow = new int[width];
+
+            for (int y = startY; y < endY; y++) {
+                // The source rows the channels of this row come from
+                int rY = wrap(y - ryOffset - yOffset, height);
+                int gY = wrap(y - gyOffset - yOffset, height);
+                int bY = wrap(y - byOffset - yOffset, height);
+
+                int[] redSource = Scanlines.read(image, rY, redRow);
+                int[] greenSource = gY == rY ? redSource : Scanlines.read(image, gY, greenRow);
+                int[] blueSource = bY == rY ? redSource : bY == gY ? greenSource : Scanlines.read(image, bY, blueRow);
+
+                for (int i = 0; i + 1 < spanEdges.length; i++) {
+                    int start = spanEdges[i];
+                    int end = spanEdges[i + 1];
+
+                    if (start < end) {
+                        gatherSpan(redSource, sourceOffset(start, redShift, width),
+                                greenSource, sourceOffset(start, greenShift, width),
+                                blueSource, sourceOffset(start, blueShift, width),
+                                compositeRow, start, end);
+                    }
+                }
+
+                Scanlines.write(destination, y, compositeRow);
             }
+        });
+    }
+
+    /**
+     * Estimates the memory held while offsetting an image: the composite image.
+     * @param pixels The number of pixels of the image. (width * height)
+     * @return The estimated footprint in bytes
+     */
+    public static long footprint(long pixels) {
+        return MemoryBudget.imageBytes(pixels, 1);
+    }
+
+    /**
+     * Method to combine a span of composite pixels from the Red, Green and Blue source rows.
+     * Within a span, each channel is a contiguous run of its source row.
+     * @param redRow the source row of the Red Channel
+     * @param redOffset the offset from a composite pixel to its Red Channel source pixel
+     * @param greenRow the source row of the Green Channel
+     * @param greenOffset the offset from a composite pixel to its Green Channel source pixel
+     * @param blueRow the source row of the Blue Channel
+     * @param blueOffset the offset from a composite pixel to its Blue Channel source pixel
+     * @param compositeRow the row to store the composite pixels in
+     * @param start the first pixel of the span
+     * @param end the pixel after the last pixel of the span
+     */
+    private static void gatherSpan(int[] redRow, int redOffset, int[] greenRow, int greenOffset,
+                                   int[] blueRow, int blueOffset, int[] compositeRow, int start, int end) {
+        if (VECTOR_KERNEL != null) {
+            VECTOR_KERNEL.gather(redRow, redOffset, greenRow, greenOffset, blueRow, blueOffset,
+                    compositeRow, start, end);
+            return;
+        }
+
+        for (int x = start; x < end; x++) {
+            compositeRow[x] = 0xFF000000
+                    | (redRow[x + redOffset] & 0xFF0000)
+                    | (greenRow[x + greenOffset] & 0xFF00)
+                    | (blueRow[x + blueOffset] & 0xFF);
         }
     }
 
     /**
-     * Method that takes in Color Channel BufferedImages and returns composite BufferedImage
-     * @param height the height (Y) of the original image in pixels
+     * Method to split a row where one of the channels wraps around. Within a span, the channel offsets don't change.
+     * @param redShift the wrapped offset of the Red Channel
+     * @param greenShift the wrapped offset of the Green Channel
+     * @param blueShift the wrapped offset of the Blue Channel
      * @param width the width (X) of the original image in pixels
-     * @param redChannel the BufferedImage of the offset applied Red Channel
-     * @param greenChannel the BufferedImage of the offset applied Green Channel
-     * @param blueChannel the BufferedImage of the offset applied Blue Channel
-     * @return the BufferedImage with the position offsets applied
+     * @return the edges of the spans, in order. Consecutive equal edges are empty spans
      */
-    private static BufferedImage combineChannels(int height, int width,
-                                                 BufferedImage redChannel,
-                                                 BufferedImage greenChannel,
-                                                 BufferedImage blueChannel) {
-
-        BufferedImage compositeImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    static int[] spanEdges(int redShift, int greenShift, int blueShift, int width) {
+        int[] spanEdges = {0, redShift, greenShift, blueShift, width};
+        Arrays.sort(spanEdges);
+        return spanEdges;
+    }
 
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                // Get the RGB values from the individual color channels
-                int compRed = (redChannel.getRGB(x, y) >> 16) & 0xFF;
-                int compGreen = (greenChannel.getRGB(x, y) >> 8) & 0xFF;
-                int compBlue = blueChannel.getRGB(x, y) & 0xFF;
+    /**
+     * Method to find the offset from a composite pixel to its source pixel, for a span that doesn't cross the shift.
+     * @param start the first pixel of the span
+     * @param shift the wrapped offset of the channel
+     * @param width the width (X) of the original image in pixels
+     * @return the offset to add to a composite pixel's X position
+     */
+    static int sourceOffset(int start, int shift, int width) {
+        return start >= shift ? -shift : width - shift;
+    }
 
-                // Combine the RGB values into a single pixel
-                int compPixel = (compRed << 16) | (compGreen << 8) | compBlue;
+    /**
+     * Method to wrap a position to the other side of the image, if it is outside the image.
+     * @param position the position, may be negative
+     * @param size the width or height of the image in pixels
+     * @return the position within the image
+     */
+    static int wrap(int position, int size) {
+        return ((position % size) + size) % size;
+    }
 
-                // Set the pixel in the composite image
-                compositeImage.setRGB(x, y, compPixel);
-            }
+    /**
+     * Loads the Vector API kernel when it is requested, and supported by the JVM and CPU.
+     * @return The Vector API kernel, or null if the scalar kernel should be used
+     */
+    private static OffsetVectorKernel loadVectorKernel() {
+        if (!VectorSupport.requested()) {
+            return null;
+        }
+        try {
+            return OffsetVectorKernel.create();
+        } catch (LinkageError e) {
+            System.out.println("Vector API unavailable, using scalar offset kernel");
+            return null;
         }
-        return compositeImage;
     }
 
     public static void main(String[] args) throws IOException {
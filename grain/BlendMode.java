@@ -1,16 +1,26 @@
 package com.h3music.videoeditor.grain;
 
-import java.awt.*;
+import com.h3music.videoeditor.frame.Scanlines;
+import com.h3music.videoeditor.frame.Stripes;
+import com.h3music.videoeditor.frame.VectorSupport;
+
 import java.awt.image.BufferedImage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This file provides the ability to crate a composite image by combining two images using blend modes.
  */
 public class BlendMode {
+    /**
+     * The optional Vector API kernel, null when the scalar lookup table kernel is used.
+     */
+    private static final BlendVectorKernel VECTOR_KERNEL = loadVectorKernel();
+
     /**
      * The Constants in Mode define the changes to the blend Method based on which Blend Mode is used.
      */
-    private enum Mode {
+    public enum Mode {
         NORMAL {
             /**
              * Method to provide outline of Normal Blend Mode calculation.
@@ -744,8 +754,39 @@ public class BlendMode {
         return divide(bg, fg, 1);
     }
 
+    /**
+     * Method to create a composite image from two images using any Blend Mode, with the rows of the image split into
+     * stripes processed in parallel. Small images are processed on the calling thread.
+     * @param bg The image used as the background of the composite image. The foreground image is layered above.
+     * @param fg The image used as the foreground of the composite image. The background image is layered below.
+     * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque)
+     * @param mode The mode being used for processing.
+     * @param executor The executor to process stripes on. Use Stripes.SAME_THREAD when already running one task per frame.
+     * @return Returns a BufferedImage Composite.
+     */
+    public static BufferedImage blend(BufferedImage bg, BufferedImage fg, double opacity, Mode mode, Executor executor) {
+        return processing(bg, fg, opacity, mode, bg, executor);
+    }
+
+    /**
+     * Method to create a composite image from two images using any Blend Mode, without modifying the background.
+     * The background can be shared, read-only, between threads (Ex. A decoded source image used for every frame).
+     * @param bg The image used as the background of the composite image. The foreground image is layered above.
+     * @param fg The image used as the foreground of the composite image. The background image is layered below.
+     * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque)
+     * @param mode The mode being used for processing.
+     * @param result The image to store the composite in, the same size as the background.
+     * @param executor The executor to process stripes on. Use Stripes.SAME_THREAD when already running one task per frame.
+     * @return Returns the result image.
+     */
+    public static BufferedImage blend(BufferedImage bg, BufferedImage fg, double opacity, Mode mode,
+                                      BufferedImage result, Executor executor) {
+        return processing(bg, fg, opacity, mode, result, executor);
+    }
+
     /**
      * Method to create composite image from blending background and foreground image.
+     * Stripes of the image are processed in parallel on the common Fork Join Pool.
      * @param bg The image used as the background of the composite image. The foreground image is layered above.
      * @param fg The image used as the foreground of the composite image. The background image is layered below.
      * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque)
@@ -753,45 +794,141 @@ public class BlendMode {
      * @return BufferedImage outputted after blend mode processing
      */
     private static BufferedImage processing(BufferedImage bg, BufferedImage fg, double opacity, Mode mode) {
-        Graphics2D g2d = bg.createGraphics();
+        return processing(bg, fg, opacity, mode, bg, ForkJoinPool.commonPool());
+    }
 
-        // Create a new BufferedImage to store the result
-        BufferedImage resultImage = new BufferedImage(bg.getWidth(), bg.getHeight(),
-                BufferedImage.TYPE_INT_ARGB);
+    /**
+     * Method to create composite image from blending background and foreground image.
+     * @param bg The image used as the background of the composite image. The foreground image is layered above.
+     * @param fg The image used as the foreground of the composite image. The background image is layered below.
+     * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque)
+     * @param mode The mode being used for processing.
+     * @param result The image to store the composite in. May be the background image itself.
+     * @param executor The executor to process stripes on.
+     * @return BufferedImage outputted after blend mode processing
+     */
+    private static BufferedImage processing(BufferedImage bg, BufferedImage fg, double opacity, Mode mode,
+                                            BufferedImage result, Executor executor) {
+        int width = bg.getWidth();
+        int height = bg.getHeight();
+
+        BlendTable blendTable = BlendTable.of(mode, opacity);
 
-        // Splits image into Pixels and then ARGB Channels for each pixel (24 Bit Pixels, 8 Bit Channels (0 - 255)
-        // Applies Blend Mode to each channel and adds new composite pixel to resultImage
-        for (int x = 0; x < bg.getWidth(); x++) {
-            for (int y = 0; y < bg.getHeight(); y++) {
+        Stripes.process(width, height, executor, (startY, endY) -> {
+            int[] srcRow = new int[width];
+            int[] destRow = new int[fg.getWidth()];
+            int[] resultRow = new int[width];
 
-                int srcPixel = bg.getRGB(x, y);
-                int destPixel = fg.getRGB(x, y);
+            // Splits image into rows of Pixels and then ARGB Channels for each pixel (24 Bit Pixels, 8 Bit Channels (0 - 255)
+            // Looks up the Blend Mode result of each channel and layers the composite pixel over the background pixel
+            for (int y = startY; y < endY; y++) {
+                Scanlines.read(bg, y, srcRow);
+                Scanlines.read(fg, y, destRow);
 
-                int srcAlpha = (srcPixel >> 24) & 0xFF;
-                int destAlpha = (destPixel >> 24) & 0xFF;
+                if (VECTOR_KERNEL != null) {
+                    VECTOR_KERNEL.blend(mode, opacity, srcRow, destRow, resultRow, width);
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        resultRow[x] = blendTable.blendPixel(srcRow[x], destRow[x]);
+                    }
+                }
 
-                int srcRed = (srcPixel >> 16) & 0xFF;
-                int destRed = (destPixel >> 16) & 0xFF;
+                for (int x = 0; x < width; x++) {
+                    srcRow[x] = sourceOver(resultRow[x], srcRow[x]);
+                }
+
+                Scanlines.write(result, y, srcRow);
+            }
+        });
 
-                int srcGreen = (srcPixel >> 8) & 0xFF;
-                int destGreen = (destPixel >> 8) & 0xFF;
+        return result;
+    }
+    /**
+     * Loads the Vector API kernel when it is requested, and supported by the JVM and CPU.
+     * @return The Vector API kernel, or null if the scalar kernel should be used
+     */
+    private static BlendVectorKernel loadVectorKernel() {
+        if (!VectorSupport.requested()) {
+            return null;
+        }
+        try {
+            return BlendVectorKernel.create();
+        } catch (LinkageError e) {
+            System.out.println("Vector API unavailable, using scalar blend kernel");
+            return null;
+        }
+    }
+    /**
+     * Layers a composite pixel over a background pixel, matching how Graphics2D draws a translucent
+     * TYPE_INT_ARGB image over another image (Source Over Alpha Compositing).
+     * @param resultPixel The 32 bit ARGB composite pixel.
+     * @param bgPixel The 32 bit ARGB background pixel.
+     * @return The 32 bit ARGB pixel after compositing
+     */
+    private static int sourceOver(int resultPixel, int bgPixel) {
+        int resultAlpha = resultPixel >>> 24;
 
-                int srcBlue = srcPixel & 0xFF;
-                int destBlue = destPixel & 0xFF;
+        if (resultAlpha == 0xFF) {
+            return resultPixel;
+        } else if (resultAlpha == 0) {
+            return bgPixel;
+        }
 
-                int resultRed = mode.blend(srcRed, destRed, opacity);
-                int resultGreen = mode.blend(srcGreen, destGreen, opacity);
-                int resultBlue = mode.blend(srcBlue, destBlue, opacity);
-                int resultAlpha = mode.blend(srcAlpha, destAlpha, opacity);
+        int bgAlpha = bgPixel >>> 24;
+        int pixel = (resultAlpha + multiply8(0xFF - resultAlpha, bgAlpha)) << 24;
 
-                int resultPixel =  (resultAlpha << 24) | (resultRed << 16) | (resultGreen << 8) | resultBlue;
-                resultImage.setRGB(x, y, resultPixel);
-            }
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            pixel |= sourceOverChannel(resultAlpha, (resultPixel >> shift) & 0xFF,
+                    bgAlpha, (bgPixel >> shift) & 0xFF) << shift;
         }
-        g2d.drawImage(resultImage, 0, 0, null);
-        g2d.dispose();
+        return pixel;
+    }
+    /**
+     * Layers a single channel of a composite pixel over the same channel of a background pixel,
+     * the same way sourceOver composites every channel.
+     * @param resultAlpha The 8 bit alpha of the composite pixel. (0 - 255)
+     * @param resultChannel The 8 bit composite channel value. (0 - 255)
+     * @param bgAlpha The 8 bit alpha of the background pixel. (0 - 255)
+     * @param bgChannel The 8 bit background channel value. (0 - 255)
+     * @return The 8 bit channel value after compositing
+     */
+    static int sourceOverChannel(int resultAlpha, int resultChannel, int bgAlpha, int bgChannel) {
+        if (resultAlpha == 0xFF) {
+            return resultChannel;
+        } else if (resultAlpha == 0) {
+            return bgChannel;
+        }
+
+        int bgFactor = multiply8(0xFF - resultAlpha, bgAlpha);
+        int alpha = resultAlpha + bgFactor;
+        int channel = multiply8(resultAlpha, resultChannel) + multiply8(bgFactor, bgChannel);
 
-        return bg;
+        if (alpha < 0xFF) {
+            channel = divide8(channel, alpha);
+        }
+        return channel;
+    }
+    /**
+     * Multiplies two 8 bit values as fractions of 255, rounded the same way as Java2D's alpha tables.
+     * @param a 8-Bit Value (0 - 255)
+     * @param b 8-Bit Value (0 - 255)
+     * @return Returns (a * b / 255) as an 8-Bit Value (0 - 255)
+     */
+    private static int multiply8(int a, int b) {
+        return (int) (((long) a * b * 0x010101 + (1 << 23)) >>> 24);
+    }
+    /**
+     * Divides an 8 bit value by an 8 bit alpha, rounded the same way as Java2D's alpha tables.
+     * @param value 8-Bit Value (0 - 255)
+     * @param alpha 8-Bit Alpha Value (1 - 255)
+     * @return Returns (value * 255 / alpha) clamped to an 8-Bit Value (0 - 255)
+     */
+    private static int divide8(int value, int alpha) {
+        if (value >= alpha) {
+            return 0xFF;
+        }
+        long increment = ((0xFFL << 24) + alpha / 2) / alpha;
+        return (int) ((value * increment + (1 << 23)) >>> 24);
     }
     /**
      * Method to change dest channel value based on input opacity
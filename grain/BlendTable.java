@@ -0,0 +1,93 @@
+package com.h3music.videoeditor.grain;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class provides a precomputed lookup table of a Blend Mode at a fixed opacity.
+ * For a given Mode and opacity, a composite channel only depends on the 8 bit background and foreground values,
+ * so every combination (256 x 256) is calculated once and looked up afterwards.
+ * Tables are cached and shared between threads, they are never modified after being built.
+ */
+final class BlendTable {
+    /**
+     * The max number of tables kept in the cache (64 KB per table).
+     */
+    private static final int MAX_CACHED_TABLES = 64;
+
+    private static final ConcurrentHashMap<Key, BlendTable> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Composite channel values, indexed by (foreground << 8) | background.
+     */
+    private final byte[] table;
+
+    /**
+     * Builds the lookup table by running the Mode's blend calculation for every channel combination.
+     * @param mode The mode being used for processing.
+     * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque)
+     */
+    private BlendTable(BlendMode.Mode mode, double opacity) {
+        table = new byte[256 * 256];
+
+        for (int dest = 0; dest < 256; dest++) {
+            for (int src = 0; src < 256; src++) {
+                table[(dest << 8) | src] = (byte) mode.blend(src, dest, opacity);
+            }
+        }
+    }
+
+    /**
+     * Returns the lookup table for a Mode and opacity, building it the first time it is requested.
+     * @param mode The mode being used for processing.
+     * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque).
+     *                Values outside of this range are clamped.
+     * @return The shared lookup table
+     */
+    static BlendTable of(BlendMode.Mode mode, double opacity) {
+        Key key = new Key(mode, Math.min(1, Math.max(0, opacity)));
+
+        BlendTable blendTable = CACHE.get(key);
+
+        if (blendTable == null) {
+            // Opacities are usually reused (Ex. Grain is always .3), so a full cache is only reached by odd callers
+            if (CACHE.size() >= MAX_CACHED_TABLES) {
+                CACHE.clear();
+            }
+            blendTable = CACHE.computeIfAbsent(key, k -> new BlendTable(k.mode(), k.opacity()));
+        }
+
+        return blendTable;
+    }
+
+    /**
+     * Looks up the composite value of a single channel.
+     * @param src The 8 bit background channel value. (0 -255)
+     * @param dest The 8 bit foreground channel value. (0 -255)
+     * @return The 8 bit composite result after blending calculation
+     */
+    int blend(int src, int dest) {
+        return table[(dest << 8) | src] & 0xFF;
+    }
+
+    /**
+     * Looks up the composite value of every channel of an ARGB pixel.
+     * @param srcPixel The 32 bit ARGB background pixel.
+     * @param destPixel The 32 bit ARGB foreground pixel.
+     * @return The 32 bit ARGB composite pixel
+     */
+    int blendPixel(int srcPixel, int destPixel) {
+        int resultAlpha = blend((srcPixel >>> 24), (destPixel >>> 24));
+        int resultRed = blend((srcPixel >> 16) & 0xFF, (destPixel >> 16) & 0xFF);
+        int resultGreen = blend((srcPixel >> 8) & 0xFF, (destPixel >> 8) & 0xFF);
+        int resultBlue = blend(srcPixel & 0xFF, destPixel & 0xFF);
+
+        return (resultAlpha << 24) | (resultRed << 16) | (resultGreen << 8) | resultBlue;
+    }
+
+    /**
+     * Cache key of a lookup table.
+     * @param mode The mode being used for processing.
+     * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque)
+     */
+    private record Key(BlendMode.Mode mode, double opacity) {}
+}
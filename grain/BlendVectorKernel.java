@@ -0,0 +1,182 @@
+package com.h3music.videoeditor.grain;
+
+import com.h3music.videoeditor.frame.VectorSupport;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * This class provides Vector API (SIMD) versions of the Blend Mode calculations.
+ * Each lane runs the same double precision calculation as the Mode, so the composite is identical to the scalar
+ * kernel. Only loaded when requested through {@link VectorSupport}.
+ */
+final class BlendVectorKernel {
+    private static final VectorSpecies<Double> DOUBLE_SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * Int species with the same amount of lanes as the double species, used to unpack the ARGB channels.
+     */
+    private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class,
+            VectorShape.forBitSize(DOUBLE_SPECIES.vectorBitSize() / 2));
+
+    private BlendVectorKernel() {}
+
+    /**
+     * Creates the kernel if the CPU's preferred vector species is wide enough to be worth it.
+     * @return The kernel, or null if the scalar kernel should be used
+     */
+    static BlendVectorKernel create() {
+        if (DOUBLE_SPECIES.vectorBitSize() < VectorSupport.MIN_VECTOR_BITS) {
+            return null;
+        }
+        return new BlendVectorKernel();
+    }
+
+    /**
+     * Blends a row of background pixels with a row of foreground pixels.
+     * @param mode The mode being used for processing.
+     * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque)
+     * @param srcRow The row of 32 bit ARGB background pixels.
+     * @param destRow The row of 32 bit ARGB foreground pixels.
+     * @param resultRow The row to store the 32 bit ARGB composite pixels in.
+     * @param width The amount of pixels in the row.
+     */
+    void blend(BlendMode.Mode mode, double opacity, int[] srcRow, int[] destRow, int[] resultRow, int width) {
+        opacity = Math.min(1, Math.max(0, opacity));
+
+        double opacityBase = 128 - (128 * opacity);
+        int upperBound = INT_SPECIES.loopBound(width);
+        int x = 0;
+
+        for (; x < upperBound; x += INT_SPECIES.length()) {
+            IntVector srcPixels = IntVector.fromArray(INT_SPECIES, srcRow, x);
+            IntVector destPixels = IntVector.fromArray(INT_SPECIES, destRow, x);
+            IntVector resultPixels = IntVector.zero(INT_SPECIES);
+
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                DoubleVector src = channel(srcPixels, shift);
+
+                // Same as BlendMode.opacityProcessing, truncated to an int
+                DoubleVector dest = channel(destPixels, shift).mul(opacity).add(opacityBase);
+                dest = toDouble(toInt(dest));
+
+                IntVector result = toInt(blend(mode, src, dest));
+                resultPixels = resultPixels.or(result.lanewise(VectorOperators.LSHL, shift));
+            }
+            resultPixels.intoArray(resultRow, x);
+        }
+
+        BlendTable blendTable = BlendTable.of(mode, opacity);
+
+        for (; x < width; x++) {
+            resultRow[x] = blendTable.blendPixel(srcRow[x], destRow[x]);
+        }
+    }
+
+    /**
+     * Provides the lanewise calculation of each Mode, matching the Mode's scalar blend method.
+     * @param mode The mode being used for processing.
+     * @param src The 8 bit background channel values. (0 -255)
+     * @param dest The 8 bit foreground channel values after opacity processing. (0 -255)
+     * @return The composite channel values, clamped and rounded to 8 bits (0 - 255)
+     */
+    private static DoubleVector blend(BlendMode.Mode mode, DoubleVector src, DoubleVector dest) {
+        switch (mode) {
+            case NORMAL -> {
+                return dest;
+            }
+            case DARKEN -> {
+                return src.min(dest);
+            }
+            case LIGHTEN -> {
+                return src.max(dest);
+            }
+            default -> {
+                DoubleVector s = src.div(255.0);
+                DoubleVector d = dest.div(255.0);
+
+                return round(percentageBlend(mode, s, d));
+            }
+        }
+    }
+
+    /**
+     * Provides the lanewise calculation of the Modes that blend channels as percentages.
+     * @param mode The mode being used for processing.
+     * @param s The background channel values as percentages (0 - 1)
+     * @param d The foreground channel values as percentages (0 - 1)
+     * @return The unclamped composite channel values (0 - 255)
+     */
+    private static DoubleVector percentageBlend(BlendMode.Mode mode, DoubleVector s, DoubleVector d) {
+        DoubleVector one = DoubleVector.broadcast(DOUBLE_SPECIES, 1);
+
+        return switch (mode) {
+            case MULTIPLY -> d.mul(s).mul(255);
+            case COLOR_BURN -> one.sub(one.sub(s).div(d)).mul(255)
+                    .blend(0, d.compare(VectorOperators.EQ, 0));
+            case LINEAR_BURN -> s.add(d).sub(1).mul(255);
+            case SCREEN -> one.sub(one.sub(s).mul(one.sub(d))).mul(255);
+            case COLOR_DODGE -> s.div(one.sub(d)).mul(255)
+                    .blend(d.mul(255), d.compare(VectorOperators.GE, 1));
+            case ADDITION -> s.add(d).mul(255);
+            case OVERLAY -> screenOrMultiply(s, d, s.compare(VectorOperators.LT, 0.5));
+            case SOFT_LIGHT -> one.sub(d.mul(2)).mul(s.mul(s)).add(d.mul(2).mul(s)).mul(255);
+            case HARD_LIGHT -> screenOrMultiply(s, d, d.compare(VectorOperators.LT, 0.5));
+            case VIVID_LIGHT -> s.div(one.sub(d)).mul(255)
+                    .blend(one.sub(one.sub(s).div(d)).mul(255), d.compare(VectorOperators.LE, 0.5));
+            case LINEAR_LIGHT -> s.add(d).mul(255)
+                    .blend(s.add(d).sub(1).mul(255), d.compare(VectorOperators.LE, 0.5));
+            case DIFFERENCE -> d.sub(s).mul(255)
+                    .blend(s.sub(d).mul(255), s.compare(VectorOperators.GT, d))
+                    .blend(d.mul(255), s.compare(VectorOperators.EQ, d));
+            case SUBTRACT -> s.sub(d).mul(255)
+                    .blend(d.mul(255), s.compare(VectorOperators.EQ, d));
+            case DIVIDE -> s.div(d).mul(255);
+            default -> throw new IllegalArgumentException("Unsupported Blend Mode: " + mode);
+        };
+    }
+
+    /**
+     * Shared calculation of the Overlay and Hard Light Modes.
+     * @param s The background channel values as percentages (0 - 1)
+     * @param d The foreground channel values as percentages (0 - 1)
+     * @param multiply The lanes that use the multiply half of the calculation, the rest use the screen half.
+     * @return The unclamped composite channel values (0 - 255)
+     */
+    private static DoubleVector screenOrMultiply(DoubleVector s, DoubleVector d, VectorMask<Double> multiply) {
+        DoubleVector one = DoubleVector.broadcast(DOUBLE_SPECIES, 1);
+
+        DoubleVector screen = one.sub(one.sub(s).mul(2).mul(one.sub(d))).mul(255);
+        return screen.blend(d.mul(s).mul(2).mul(255), multiply);
+    }
+
+    /**
+     * Clamps channel values to 8 Bits (0 - 255) and rounds them, the same as Math.round(limitRange(result)).
+     * @param result Channel values after blend mode processing
+     * @return Clamped and rounded channel values
+     */
+    private static DoubleVector round(DoubleVector result) {
+        return toDouble(toInt(result.max(0).min(255).add(0.5)));
+    }
+
+    /**
+     * Unpacks one 8 bit channel from each ARGB pixel.
+     * @param pixels The 32 bit ARGB pixels.
+     * @param shift The bit position of the channel (24 Alpha, 16 Red, 8 Green, 0 Blue)
+     * @return The channel values (0 - 255)
+     */
+    private static DoubleVector channel(IntVector pixels, int shift) {
+        return toDouble(pixels.lanewise(VectorOperators.LSHR, shift).and(0xFF));
+    }
+
+    private static DoubleVector toDouble(IntVector vector) {
+        return (DoubleVector) vector.convertShape(VectorOperators.I2D, DOUBLE_SPECIES, 0);
+    }
+
+    private static IntVector toInt(DoubleVector vector) {
+        return (IntVector) vector.convertShape(VectorOperators.D2I, INT_SPECIES, 0);
+    }
+}
@@ -0,0 +1,40 @@
+package com.h3music.videoeditor.grain;
+
+/**
+ * This class provides a Blend Mode at a fixed opacity, one channel of one pixel at a time.
+ * Used by kernels that fuse the blend with another per-pixel operation (Ex. The glitch effect's channel offsets),
+ * so the composite image never has to be stored. Each channel matches the composite BlendMode.blend creates.
+ * Instances only read shared lookup tables, and can be used by any number of threads.
+ */
+public final class ChannelBlend {
+    private final BlendTable blendTable;
+
+    private ChannelBlend(BlendTable blendTable) {
+        this.blendTable = blendTable;
+    }
+
+    /**
+     * Returns the channel blend of a Mode and opacity.
+     * @param mode The mode being used for processing.
+     * @param opacity Opacity Percentage of the foreground image (0 100% Transparent - 1 100% Opaque)
+     * @return The channel blend
+     */
+    public static ChannelBlend of(BlendMode.Mode mode, double opacity) {
+        return new ChannelBlend(BlendTable.of(mode, opacity));
+    }
+
+    /**
+     * Blends a single channel of a foreground pixel, and layers it over the background pixel.
+     * @param bgPixel The 32 bit ARGB background pixel.
+     * @param fgPixel The 32 bit ARGB foreground pixel.
+     * @param shift The shift of the channel in the pixel. (16 Red, 8 Green, 0 Blue)
+     * @return The 8 bit composite channel value (0 - 255)
+     */
+    public int channel(int bgPixel, int fgPixel, int shift) {
+        int bgChannel = (bgPixel >> shift) & 0xFF;
+        int resultChannel = blendTable.blend(bgChannel, (fgPixel >> shift) & 0xFF);
+        int resultAlpha = blendTable.blend(bgPixel >>> 24, fgPixel >>> 24);
+
+        return BlendMode.sourceOverChannel(resultAlpha, resultChannel, bgPixel >>> 24, bgChannel);
+    }
+}
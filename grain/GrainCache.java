@@ -0,0 +1,290 @@
+package com.h3music.videoeditor.grain;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches decoded grain frames, so back-to-back renders in one JVM don't decode the grain set again.
+ * Frames are keyed by the file's content hash and the target resolution, and the least recently used frames are
+ * evicted once the decoded pixel data exceeds a byte budget.
+ * Cached frames are shared between threads, and must only be read, never modified.
+ */
+public final class GrainCache {
+    /**
+     * The system property to configure the byte budget of the shared cache.
+     * Defaults to a quarter of the max heap size.
+     */
+    public static final String BUDGET_PROPERTY = "videoeditor.grainCacheBytes";
+
+    private static final GrainCache SHARED = new GrainCache(
+            Long.getLong(BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 4));
+
+    private final LinkedHashMap<Key, BufferedImage> frames = new LinkedHashMap<>(128, 0.75f, true);
+    private final HashMap<Key, CompletableFuture<BufferedImage>> loading = new HashMap<>();
+    private final ConcurrentHashMap<FileStamp, String> contentHashes = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong joins = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private long budgetBytes;
+    private long sizeBytes;
+
+    /**
+     * Creates a cache with its own byte budget. Most callers should use the shared cache.
+     * @param budgetBytes The max amount of decoded pixel data, in bytes, held by the cache.
+     */
+    public GrainCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the process-wide cache used by GrainEffect.
+     * @return The shared cache
+     */
+    public static GrainCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns a decoded grain frame, decoding it only if it isn't already cached.
+     * @param file An image file of the grain frame.
+     * @param width The width (X) of the image it will be blended over. Larger frames are cropped to this size.
+     *              A value of 0 keeps the full width.
+     * @param height The height (Y) of the image it will be blended over. Larger frames are cropped to this size.
+     *               A value of 0 keeps the full height.
+     * @return The decoded grain frame, shared read-only
+     * @throws IOException If the file can't be read or decoded
+     */
+    public BufferedImage get(File file, int width, int height) throws IOException {
+        Key key = new Key(contentHash(file), width, height);
+
+        CompletableFuture<BufferedImage> load = new CompletableFuture<>();
+        CompletableFuture<BufferedImage> existing;
+
+        // The lookup and the in-flight load are added in one step, so a frame is never decoded twice
+        synchronized (this) {
+            BufferedImage frame = frames.get(key);
+            if (frame != null) {
+                hits.incrementAndGet();
+                return frame;
+            }
+            existing = loading.putIfAbsent(key, load);
+        }
+
+        if (existing != null) {
+            // Another thread is already decoding this frame
+            joins.incrementAndGet();
+            return await(existing);
+        }
+
+        misses.incrementAndGet();
+        try {
+            BufferedImage frame = decode(file, width, height);
+            store(key, frame);
+            load.complete(frame);
+            return frame;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(key);
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Changes the byte budget, evicting frames if the cache is now over budget.
+     * @param budgetBytes The max amount of decoded pixel data, in bytes, held by the cache.
+     */
+    public synchronized void setBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evict();
+    }
+
+    /**
+     * Removes every frame from the cache.
+     */
+    public synchronized void clear() {
+        frames.clear();
+        sizeBytes = 0;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of lookups that waited for another thread's decode of the same frame, instead of decoding it.
+     * @return The number of joined loads
+     */
+    public long joins() {
+        return joins.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public synchronized long sizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized long budgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Summarizes the cache metrics.
+     * @return A line with the hits, joined loads, misses, evictions and memory use of the cache
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("Grain cache: %d hits, %d joined, %d misses, %d evictions, %d frames, %d / %d MB",
+                hits(), joins(), misses(), evictions(), frames.size(), sizeBytes >> 20, budgetBytes >> 20);
+    }
+
+    /**
+     * Adds a decoded frame to the cache, ending its in-flight load, and evicts the least recently used frames
+     * if over budget.
+     * @param key The key of the frame.
+     * @param frame The decoded frame.
+     */
+    private synchronized void store(Key key, BufferedImage frame) {
+        loading.remove(key);
+
+        BufferedImage previous = frames.put(key, frame);
+        if (previous != null) {
+            sizeBytes -= byteSize(previous);
+        }
+        sizeBytes += byteSize(frame);
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used frames until the cache is within budget.
+     */
+    private void evict() {
+        Iterator<BufferedImage> iterator = frames.values().iterator();
+
+        while (sizeBytes > budgetBytes && iterator.hasNext()) {
+            sizeBytes -= byteSize(iterator.next());
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Hashes the content of a file. Hashes are remembered until the file's size or modified time changes.
+     * @param file The file to hash.
+     * @return The SHA-256 hash of the file, as hex
+     * @throws IOException If the file can't be read
+     */
+    public String contentHash(File file) throws IOException {
+        FileStamp stamp = new FileStamp(file.getCanonicalPath(), file.length(), file.lastModified());
+
+        String hash = contentHashes.get(stamp);
+        if (hash == null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                hash = HexFormat.of().formatHex(digest.digest(Files.readAllBytes(file.toPath())));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            contentHashes.put(stamp, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Decodes a grain frame, cropped to the target resolution.
+     * @param file An image file of the grain frame.
+     * @param width The target width (X), 0 to keep the full width.
+     * @param height The target height (Y), 0 to keep the full height.
+     * @return The decoded frame
+     * @throws IOException If the file can't be read or decoded
+     */
+    private static BufferedImage decode(File file, int width, int height) throws IOException {
+        BufferedImage frame = ImageIO.read(file);
+
+        if (frame == null) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+
+        int croppedWidth = width > 0 ? Math.min(width, frame.getWidth()) : frame.getWidth();
+        int croppedHeight = height > 0 ? Math.min(height, frame.getHeight()) : frame.getHeight();
+
+        if (croppedWidth == frame.getWidth() && croppedHeight == frame.getHeight()) {
+            return frame;
+        }
+
+        // Copies the cropped pixels, so the cache doesn't hold the rest of the frame
+        BufferedImage cropped = new BufferedImage(frame.getColorModel(),
+                frame.getRaster().createCompatibleWritableRaster(croppedWidth, croppedHeight),
+                frame.isAlphaPremultiplied(), null);
+        cropped.setData(frame.getRaster().createChild(0, 0, croppedWidth, croppedHeight, 0, 0, null));
+
+        return cropped;
+    }
+
+    /**
+     * Finds the amount of memory used by the pixel data of an image.
+     * @param image The image to measure.
+     * @return The size of the pixel data in bytes
+     */
+    private static long byteSize(BufferedImage image) {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    private static BufferedImage await(CompletableFuture<BufferedImage> load) throws IOException {
+        try {
+            return load.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Cache key of a decoded frame.
+     * @param contentHash The SHA-256 hash of the frame's file.
+     * @param width The target width (X) of the frame.
+     * @param height The target height (Y) of the frame.
+     */
+    private record Key(String contentHash, int width, int height) {}
+
+    /**
+     * Identifies a version of a file, without reading it.
+     * @param path The canonical path of the file.
+     * @param length The size of the file in bytes.
+     * @param lastModified The last modified time of the file.
+     */
+    private record FileStamp(String path, long length, long lastModified) {}
+}
@@ -1,16 +1,19 @@
 package com.h3music.videoeditor.grain;
 
-import javax.imageio.ImageIO;
+import com.h3music.videoeditor.frame.FrameCodec;
+import com.h3music.videoeditor.frame.FramePool;
+import com.h3music.videoeditor.frame.MemoryBudget;
+import com.h3music.videoeditor.frame.RenderScheduler;
+import com.h3music.videoeditor.frame.Stripes;
+
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 /**
  * This class overlays film grain to a still image or frames of a video.
+ * Decoded grain frames are kept in the shared GrainCache between calls, and frames are processed on a RenderScheduler.
  */
 public class GrainEffect {
     /**
@@ -22,44 +25,97 @@ public class GrainEffect {
      * @param durationMultiplier Multiplies the duration of the source to apply different grain frames to source images
      *                           (If a single image is used as a source, you can apply grain to it multiple times by
      *                           using this parameter).
-     * @param maxThreads Hard limits the amount of threads used by the method.
-     *                   If heap memory errors are occurring lower this number.
-     *                   Performance has diminishing returns when maxThreads > physical CPU cores.
-     *                   Default value in overloaded methods is 4.
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     * @param codec The format to write the composite images in.
      */
-    private static void grain(ArrayList<File> source, ArrayList<File> grainFrames,
-                              File outputFolder, double opacity, int durationMultiplier, int maxThreads) {
-
-        ExecutorService executorService = Executors.newFixedThreadPool(maxThreads);
+    private static void grain(ArrayList<File> source, ArrayList<File> grainFrames, File outputFolder, double opacity,
+                              int durationMultiplier, RenderScheduler scheduler, FrameCodec codec) {
 
         int length = source.size() * durationMultiplier;
+        int grainSize = grainFrames.size();
+        int sourceSize = source.size();
 
-        for (int i = 0; i < length; i++) {
+        // Each task also decodes its source
+        long pixels = source.isEmpty() ? 0 : MemoryBudget.pixels(source.get(0));
+        long frameBytes = footprint(pixels) + MemoryBudget.imageBytes(pixels, 1);
 
-            int grainSize = grainFrames.size();
-            int sourceSize = source.size();
+        scheduler.forEach(length, frameBytes, i -> {
 
             int grainI = ((i % grainSize) + grainSize) % grainSize;
             int sourceI = ((i % sourceSize) + sourceSize) % sourceSize;
-            int finalI = i;
 
             File grainFile = grainFrames.get(grainI);
             File sourceFile = source.get(sourceI);
 
-            Runnable task = () -> grainProcessing(sourceFile, grainFile, finalI, outputFolder, opacity);
+            grainProcessing(sourceFile, grainFile, i, outputFolder, opacity, codec);
+        });
+    }
 
-            executorService.execute(task);
-        }
-        executorService.shutdown();
+    /**
+     * This is the master method for a decoded source image. The source is decoded once, and shared by every thread.
+     * @param source A decoded image to have the grain overlay applied to. It is only read, never modified.
+     * @param grainFrames An array list of image files, to overlay blend over the source image.
+     * @param outputFolder An output folder location for the composite images.
+     * @param opacity The opacity of the grain over the source.
+     * @param durationMultiplier The number of composite images to create, each with a different grain frame.
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     * @param codec The format to write the composite images in, Ex. FrameCodec.forRender.
+     */
+    public static void grain(BufferedImage source, ArrayList<File> grainFrames, File outputFolder, double opacity,
+                             int durationMultiplier, RenderScheduler scheduler, FrameCodec codec) {
+
+        int grainSize = grainFrames.size();
+
+        long frameBytes = footprint((long) source.getWidth() * source.getHeight());
+
+        scheduler.forEach(durationMultiplier, frameBytes, i -> {
+
+            int grainI = ((i % grainSize) + grainSize) % grainSize;
+
+            grainProcessing(source, grainFrames.get(grainI), i, outputFolder, opacity, codec);
+        });
+    }
+
+    /**
+     * This is an overloaded method for a decoded source image, writing JPEG composite images.
+     * @param source A decoded image to have the grain overlay applied to. It is only read, never modified.
+     * @param grainFrames An array list of image files, to overlay blend over the source image.
+     * @param outputFolder An output folder location for the composite images.
+     * @param opacity The opacity of the grain over the source.
+     * @param durationMultiplier The number of composite images to create, each with a different grain frame.
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     */
+    public static void grain(BufferedImage source, ArrayList<File> grainFrames,
+                             File outputFolder, double opacity, int durationMultiplier, RenderScheduler scheduler) {
+        grain(source, grainFrames, outputFolder, opacity, durationMultiplier, scheduler, FrameCodec.jpeg());
+    }
+
+    /**
+     * This is an overloaded method to add grain to a single source image.
+     * @param source An image file to have the grain overlay applied to.
+     * @param grainFrames An array list of image files, to overlay blend over the source image files.
+     * @param outputFolder An output folder location for the composite images.
+     * @param opacity The opacity of the grain over the source.
+     * @param durationMultiplier Multiplies the duration of the source to apply different grain frames to source images
+     *                           (If a single image is used as a source, you can apply grain to it multiple times by
+     *                           using this parameter).
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     * @param codec The format to write the composite images in, Ex. FrameCodec.forRender.
+     */
+    public static void grain(File source, ArrayList<File> grainFrames, File outputFolder, double opacity,
+                             int durationMultiplier, RenderScheduler scheduler, FrameCodec codec) {
         try {
-            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            BufferedImage sourceImage = FrameCodec.read(source);
+
+            grain(sourceImage, grainFrames, outputFolder, opacity, durationMultiplier, scheduler, codec);
+
+        } catch (IOException io) {
+            io.printStackTrace();
         }
     }
 
     /**
-     * This is an overloaded method to add grain to a single source image.
+     * This is an overloaded method to add grain to a single source image, writing JPEG composite images.
      * @param source An image file to have the grain overlay applied to.
      * @param grainFrames An array list of image files, to overlay blend over the source image files.
      * @param outputFolder An output folder location for the composite images.
@@ -67,17 +123,30 @@ public class GrainEffect {
      * @param durationMultiplier Multiplies the duration of the source to apply different grain frames to source images
      *                           (If a single image is used as a source, you can apply grain to it multiple times by
      *                           using this parameter).
-     * @param maxThreads Hard limits the amount of threads used by the method.
+     * @param scheduler The scheduler to process frames on, usually RenderScheduler.shared().
+     */
+    public static void grain(File source, ArrayList<File> grainFrames,
+                             File outputFolder, double opacity, int durationMultiplier, RenderScheduler scheduler) {
+        grain(source, grainFrames, outputFolder, opacity, durationMultiplier, scheduler, FrameCodec.jpeg());
+    }
+
+    /**
+     * This is an overloaded method to add grain to a single source image, on the shared render scheduler.
+     * @param source An image file to have the grain overlay applied to.
+     * @param grainFrames An array list of image files, to overlay blend over the source image files.
+     * @param outputFolder An output folder location for the composite images.
+     * @param opacity The opacity of the grain over the source.
+     * @param durationMultiplier Multiplies the duration of the source to apply different grain frames to source images
+     *                           (If a single image is used as a source, you can apply grain to it multiple times by
+     *                           using this parameter).
+     * @param maxThreads Hard limits the amount of frames processed at once.
      *                   If heap memory errors are occurring lower this number.
      *                   Performance has diminishing returns when maxThreads > physical CPU cores.
      */
     public static void grain(File source, ArrayList<File> grainFrames,
                              File outputFolder, double opacity, int durationMultiplier, int maxThreads) {
-
-        ArrayList<File> sourceArray = new ArrayList<>();
-        sourceArray.add(source);
-
-        grain(sourceArray, grainFrames, outputFolder, opacity, durationMultiplier, maxThreads);
+        grain(source, grainFrames, outputFolder, opacity, durationMultiplier,
+                RenderScheduler.shared().withParallelism(maxThreads));
     }
     /**
      * This is an overloaded method to add grain to a single source image,
@@ -108,7 +177,8 @@ public class GrainEffect {
      */
     public static void grain(ArrayList<File> source, ArrayList<File> grainFrames,
                               File outputFolder, double opacity, int maxThreads) {
-        grain(source, grainFrames, outputFolder, opacity, 1, maxThreads);
+        grain(source, grainFrames, outputFolder, opacity, 1, RenderScheduler.shared().withParallelism(maxThreads),
+                FrameCodec.jpeg());
     }
 
 
@@ -123,10 +193,21 @@ public class GrainEffect {
     // grain method for video frames without threads given
     public static void grain(ArrayList<File> source, ArrayList<File> grainFrames,
                               File outputFolder, double opacity) {
-        grain(source, grainFrames, outputFolder, opacity, 1, 4);
+        grain(source, grainFrames, outputFolder, opacity, 1, RenderScheduler.shared().withParallelism(4),
+                FrameCodec.jpeg());
     }
 
 
+    /**
+     * Estimates the memory held by one composite frame task of a decoded source: the composite image,
+     * and a grain frame being decoded before it is cached.
+     * @param pixels The number of pixels of the source. (width * height)
+     * @return The estimated footprint in bytes
+     */
+    public static long footprint(long pixels) {
+        return MemoryBudget.imageBytes(pixels, 2);
+    }
+
     /**
      * This method provides the logic for individual composite image creation.
      * @param sourceFile An image file to have the grain overlay applied to.
@@ -134,19 +215,80 @@ public class GrainEffect {
      * @param i The iteration to name the output composite file.
      * @param outputFolder An output folder location for the composite images.
      * @param opacity The opacity of the grain over the source.
+     * @param codec The format to write the composite image in.
+     */
+    private static void grainProcessing(File sourceFile, File grainFile, int i, File outputFolder, double opacity,
+                                        FrameCodec codec) {
+        try {
+            BufferedImage source = FrameCodec.read(sourceFile);
+            BufferedImage grain = GrainCache.shared().get(grainFile, source.getWidth(), source.getHeight());
+            File outputFile = new File(outputFolder, codec.fileName(i));
+
+            BufferedImage output = BlendMode.blend(source, grain, opacity, BlendMode.Mode.OVERLAY, Stripes.SAME_THREAD);
+
+            codec.write(output, outputFile);
+
+        } catch (IOException io) {
+            io.printStackTrace();
+        }
+    }
+
+    /**
+     * This method provides the logic for individual composite image creation from a shared, decoded source.
+     * @param source A decoded image to have the grain overlay applied to. It is only read, never modified.
+     * @param grainFile An image file to overlay blend over the source image.
+     * @param i The iteration to name the output composite file.
+     * @param outputFolder An output folder location for the composite images.
+     * @param opacity The opacity of the grain over the source.
+     * @param codec The format to write the composite image in.
      */
-    private static void grainProcessing(File sourceFile, File grainFile, int i, File outputFolder, double opacity) {
+    private static void grainProcessing(BufferedImage source, File grainFile, int i, File outputFolder, double opacity,
+                                        FrameCodec codec) {
         try {
-            BufferedImage source = ImageIO.read(sourceFile);
-            BufferedImage grain = ImageIO.read(grainFile);
-            File outputFile = new File(outputFolder, i + ".jpg");
+            File outputFile = new File(outputFolder, codec.fileName(i));
 
-            BufferedImage output = BlendMode.overlay(source, grain, opacity);
+            try (FramePool.Lease<BufferedImage> output = FramePool.shared().compatible(source)) {
+                grainFrame(source, grainFile, opacity, output.get());
 
-            ImageIO.write(output, "jpg", outputFile);
+                codec.write(output.get(), outputFile);
+            }
 
         } catch (IOException io) {
             io.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * This method creates a single composite frame in memory, without writing it to a file.
+     * Used when frames are streamed straight to the encoder.
+     * @param source A decoded image to have the grain overlay applied to. It is only read, never modified.
+     * @param grainFile An image file to overlay blend over the source image.
+     * @param opacity The opacity of the grain over the source.
+     * @return The composite frame, with the same image type as the source
+     * @throws IOException If the grain frame can't be read
+     */
+    public static BufferedImage grainFrame(BufferedImage source, File grainFile, double opacity) throws IOException {
+        // Same image type as the source, so the composite matches blending over the source itself
+        BufferedImage output = new BufferedImage(source.getColorModel(),
+                source.getRaster().createCompatibleWritableRaster(), source.isAlphaPremultiplied(), null);
+
+        return grainFrame(source, grainFile, opacity, output);
+    }
+
+    /**
+     * This method creates a single composite frame into a destination image, Ex. One leased from the FramePool.
+     * @param source A decoded image to have the grain overlay applied to. It is only read, never modified.
+     * @param grainFile An image file to overlay blend over the source image.
+     * @param opacity The opacity of the grain over the source.
+     * @param destination The image to store the composite frame in. Must be the same size as the source.
+     *                    Use the source's image type for a composite matching blending over the source itself.
+     * @return The destination image
+     * @throws IOException If the grain frame can't be read
+     */
+    public static BufferedImage grainFrame(BufferedImage source, File grainFile, double opacity,
+                                           BufferedImage destination) throws IOException {
+        BufferedImage grain = GrainCache.shared().get(grainFile, source.getWidth(), source.getHeight());
+
+        return BlendMode.blend(source, grain, opacity, BlendMode.Mode.OVERLAY, destination, Stripes.SAME_THREAD);
+    }
+}